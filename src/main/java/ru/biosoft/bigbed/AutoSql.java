@@ -3,7 +3,6 @@ package ru.biosoft.bigbed;
 import java.util.ArrayList;
 import java.util.List;
 
-//TODO: support variable length arrays "int[expCount] expIds"
 public class AutoSql {
 	public String name;
 	public String description;
@@ -74,7 +73,7 @@ public class AutoSql {
 			Column col = new Column();
 			col.type = tr.nextIdentifier();
 			if (tr.peek() instanceof ArraySize)
-				col.type += "[" + ((ArraySize) tr.next()).value + "]";
+				col.type += "[" + tr.next() + "]";
 			col.name = tr.nextIdentifier();
 			if (!(tr.next() instanceof Semicolon))
 				error("Expecting ;");
@@ -118,10 +117,20 @@ public class AutoSql {
 
 	static class ArraySize implements Token {
 		int value;
+		String sizeColumn;//for variable length arrays
 
 		ArraySize(int value) {
 			this.value = value;
 		}
+
+		ArraySize(String sizeColumn) {
+			this.sizeColumn = sizeColumn;
+		}
+
+		@Override
+		public String toString() {
+			return sizeColumn != null ? sizeColumn : String.valueOf(value);
+		}
 	}
 
 	private static boolean isIdLetter(char c) {
@@ -198,22 +207,19 @@ public class AutoSql {
 					t = new Semicolon();
 					break;
 				case '[': {
-					int value = 0;
-					char c = 0;
-					while (true) {
-						++i;
-						if (i >= str.length())
-							break;
-						c = str.charAt(i);
-						if (!Character.isDigit(c))
-							break;
-						value *= 10;
-						value += c - '0';
-					}
-					if (c != ']')
+					//fixed size "[10]" or size given by other column "[blockCount]"
+					int start = i + 1;
+					int close = str.indexOf(']', start);
+					if (close == -1)
 						error("expecting ]");
-					++i;
-					t = new ArraySize(value);
+					String size = str.substring(start, close).trim();
+					i = close + 1;
+					if (!size.isEmpty() && size.chars().allMatch(Character::isDigit))
+						t = new ArraySize(Integer.parseInt(size));
+					else if (!size.isEmpty() && size.chars().allMatch(c -> isIdLetter((char) c)))
+						t = new ArraySize(size);
+					else
+						throw new ParseException("Invalid array size: " + size);
 					break;
 				}
 				case '"':
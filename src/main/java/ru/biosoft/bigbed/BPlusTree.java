@@ -1,11 +1,16 @@
 package ru.biosoft.bigbed;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 //Basically it is Map from byte[keySize] to byte[valSize] stored in external memory
+//Lookups use only positional reads of DataSource and are safe for concurrent use
 public class BPlusTree {
 	public static final int MAGIC_BPLUS_TREE = 0x78CA8C91;
 	public static final int HEADER_SIZE = 32;
@@ -34,22 +39,96 @@ public class BPlusTree {
 	
 	void readHeader(long position) throws IOException
 	{
-		dataSource.seek(position);
-		magic = dataSource.readInt();
+		byte[] buf = new byte[HEADER_SIZE];
+		dataSource.readFully(position, buf, 0, HEADER_SIZE);
+		ByteBuffer b = ByteBuffer.wrap(buf).order(dataSource.order());
+		magic = b.getInt();
 		if(magic != MAGIC_BPLUS_TREE)
 			throw new ParseException("Not a B+tree format, magic bytes 0x" + Integer.toHexString(magic));
-		blockSize = dataSource.readUInt();;
-		keySize = dataSource.readUInt();
-		valSize = dataSource.readUInt();
-		itemCount = dataSource.readULong();
-		
-		//Skip reserved fields
-		dataSource.readInt();
-		dataSource.readInt();
+		blockSize = Utils.readUInt(b);
+		keySize = Utils.readUInt(b);
+		valSize = Utils.readUInt(b);
+		itemCount = Utils.readULong(b);
+		//two reserved int fields are not used
 		
 		rootOffset = position + HEADER_SIZE;
 	}
 	
+	//Nodes of the upper levels are kept in memory after the first read
+	static final int CACHED_LEVELS = 2;
+	private final Map<Long, byte[]> nodeCache = new ConcurrentHashMap<>();
+	
+	//Read node with single positional read, the result is positioned at the first item
+	//Node is read with the size of the largest node, so the read may go past the node end
+	private ByteBuffer readNode(DataSource d, long blockOffset) throws IOException
+	{
+		int maxNodeSize = BLOCK_HEADER_SIZE + blockSize * (keySize + Math.max(valSize, 8));
+		byte[] buf = new byte[maxNodeSize];
+		int length = 0;
+		while(length < maxNodeSize)
+		{
+			int n = d.read(blockOffset + length, buf, length, maxNodeSize - length);
+			if(n < 0)
+				break;
+			length += n;
+		}
+		if(length < BLOCK_HEADER_SIZE)
+			throw new EOFException();
+		boolean isLeaf = buf[0] == 1;
+		int childCount = ByteBuffer.wrap(buf).order(d.order()).getShort(2) & 0xffff;
+		int nodeSize = BLOCK_HEADER_SIZE + childCount * (keySize + (isLeaf ? valSize : 8));
+		if(length < nodeSize)
+			throw new EOFException();
+		return ByteBuffer.wrap(buf, 0, nodeSize).order(d.order());
+	}
+	
+	//Node at given depth of the tree (root has depth 0), nodes of upper levels are cached
+	private ByteBuffer getNode(long blockOffset, int depth) throws IOException
+	{
+		if(depth >= CACHED_LEVELS)
+			return readNode(dataSource, blockOffset);
+		byte[] cached = nodeCache.get(blockOffset);
+		if(cached == null)
+		{
+			ByteBuffer node = readNode(dataSource, blockOffset);
+			cached = Arrays.copyOf(node.array(), node.limit());
+			nodeCache.put(blockOffset, cached);
+		}
+		return ByteBuffer.wrap(cached).order(dataSource.order());
+	}
+	
+	//Offset of the key of item @i in node array
+	private int keyOffset(ByteBuffer node, int i)
+	{
+		int itemSize = keySize + (node.get(0) == 1 ? valSize : 8);
+		return BLOCK_HEADER_SIZE + i * itemSize;
+	}
+	
+	//Number of items with key less than @key (or less or equal if @orEqual), keys of the node are sorted
+	private int countLess(ByteBuffer node, int childCount, byte[] key, boolean orEqual)
+	{
+		byte[] array = node.array();
+		int lo = 0, hi = childCount;
+		while(lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			int c = cmp(array, keyOffset(node, mid), key, keySize);
+			if(c < 0 || (orEqual && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+	
+	//Child pointer of item @i of non-leaf node
+	private long childOffset(ByteBuffer node, int i)
+	{
+		long res = node.getLong(keyOffset(node, i) + keySize);
+		Utils.checkULong(res);
+		return res;
+	}
+	
 	public boolean find(byte[] key, byte[] result) throws IOException
 	{
 		if(key.length > keySize)
@@ -64,33 +143,22 @@ public class BPlusTree {
 	
 	private boolean rFind(long blockOffset, byte[] key, byte[] result) throws IOException
 	{
-		dataSource.seek(blockOffset);
-		byte isLeaf = dataSource.readByte();
-		byte reserved = dataSource.readByte();
-		int childCount = dataSource.readUShortAsInt();
-		byte[] keyBuf = new byte[keySize];
-		if(isLeaf == 1)
-		{
-			for (int i = 0; i < childCount; i++) {
-				dataSource.readFully(keyBuf, 0, keySize);
-				dataSource.readFully(result, 0, valSize);
-				if (Arrays.equals(key, keyBuf))
-					return true;
-			}
-			return false;
-		}
-		else
+		for(int depth = 0; ; depth++)
 		{
-			dataSource.skip(keySize);//discard key
-			long fileOffset = dataSource.readULong();
-			for(int i = 1; i < childCount; i++)
+			ByteBuffer node = getNode(blockOffset, depth);
+			boolean isLeaf = node.get(0) == 1;
+			int childCount = Short.toUnsignedInt(node.getShort(2));
+			if(isLeaf)
 			{
-				dataSource.readFully(keyBuf, 0, keySize);
-				if(cmp(key, keyBuf, keySize) < 0)
-					break;
-				fileOffset = dataSource.readULong();
+				int i = countLess(node, childCount, key, false);
+				if(i == childCount || cmp(node.array(), keyOffset(node, i), key, keySize) != 0)
+					return false;
+				System.arraycopy(node.array(), keyOffset(node, i) + keySize, result, 0, valSize);
+				return true;
 			}
-			return rFind(fileOffset, key, result);
+			//the last child with key <= key, the key of the first child is not checked
+			int i = Math.max(1, countLess(node, childCount, key, true)) - 1;
+			blockOffset = childOffset(node, i);
 		}
 	}
 
@@ -100,59 +168,213 @@ public class BPlusTree {
 			return;
 		byte[] keyBuf = new byte[keySize];
 		System.arraycopy(key, 0, keyBuf, 0, key.length);
-		rFindMulti(rootOffset, keyBuf, resConsumer);
+		rFindMulti(rootOffset, 0, keyBuf, resConsumer);
+	}
+	
+	private void rFindMulti(long blockOffset, int depth, byte[] key, Consumer<byte[]> resConsumer) throws IOException
+	{
+		ByteBuffer node = getNode(blockOffset, depth);
+		boolean isLeaf = node.get(0) == 1;
+		int childCount = Short.toUnsignedInt(node.getShort(2));
+		
+		if(isLeaf)
+		{
+			for(int i = countLess(node, childCount, key, false); i < childCount; i++)
+			{
+				int keyOffset = keyOffset(node, i);
+				if(cmp(node.array(), keyOffset, key, keySize) != 0)
+					break;
+				resConsumer.accept(Arrays.copyOfRange(node.array(), keyOffset + keySize, keyOffset + keySize + valSize));
+			}
+		}
+		else
+		{
+			//equal keys may span several children: from the last child with key < key to the last child with key <= key
+			int last = countLess(node, childCount, key, true) - 1;
+			if(last < 0 && childCount > 1)
+				return;
+			int first = Math.max(0, countLess(node, childCount, key, false) - 1);
+			for(int i = first; i <= Math.max(last, 0); i++)
+				rFindMulti(childOffset(node, i), depth + 1, key, resConsumer);
+		}
+	}
+
+	interface MultiKeyConsumer {
+		//@keyIdx is index of key in the list passed to findMulti
+		void accept(int keyIdx, byte[] val);
 	}
 	
-	private void rFindMulti(long blockOffset, byte[] key, Consumer<byte[]> resConsumer) throws IOException
+	//Find values of many keys with single descent, each node is read at most once
+	//@keys should be sorted by cmp and padded with zeros to keySize
+	void findMulti(List<byte[]> keys, MultiKeyConsumer resConsumer) throws IOException
 	{
-		dataSource.seek(blockOffset);
-		byte isLeaf = dataSource.readByte();
-		byte reserved = dataSource.readByte();
-		int childCount = dataSource.readUShortAsInt();
+		if(itemCount == 0 || keys.isEmpty())
+			return;
+		rFindMulti(rootOffset, 0, keys, 0, keys.size(), resConsumer);
+	}
+	
+	private void rFindMulti(long blockOffset, int depth, List<byte[]> keys, int from, int to, MultiKeyConsumer resConsumer) throws IOException
+	{
+		ByteBuffer node = getNode(blockOffset, depth);
+		byte isLeaf = node.get();
+		byte reserved = node.get();
+		int childCount = Short.toUnsignedInt(node.getShort());
 		byte[] keyBuf = new byte[keySize];
 		
 		if(isLeaf == 1)
 		{
-			for (int i = 0; i < childCount; i++) {
-				dataSource.readFully(keyBuf, 0, keySize);
-				
-				if (Arrays.equals(key, keyBuf))
+			//merge sorted items with sorted keys
+			int k = from;
+			for (int i = 0; i < childCount && k < to; i++) {
+				node.get(keyBuf, 0, keySize);
+				while(k < to && cmp(keys.get(k), keyBuf, keySize) < 0)
+					k++;
+				if(k < to && cmp(keys.get(k), keyBuf, keySize) == 0)
 				{
 					byte[] valBuf = new byte[valSize];
-					dataSource.readFully(valBuf, 0, valSize);
-					resConsumer.accept(valBuf);
-				}else
-				{
-					dataSource.skip(valSize);
+					node.get(valBuf, 0, valSize);
+					resConsumer.accept(k, valBuf);
 				}
+				else
+					node.position(node.position() + valSize);
 			}
 		}
 		else
 		{
-			dataSource.readFully(keyBuf, 0, keySize);
-			long lastFileOffset = dataSource.readULong();
-			long fileOffset = lastFileOffset;
-			int lastCmp = cmp(key, keyBuf, keySize);
-			for(int i = 1; i < childCount; i++)
+			//child i may contain keys in [key(i), key(i+1)], equal keys may span several children
+			byte[] nextKey = new byte[keySize];
+			node.get(keyBuf, 0, keySize);
+			long fileOffset = Utils.readULong(node);
+			int lo = from;
+			while(lo < to && cmp(keys.get(lo), keyBuf, keySize) < 0)
+				lo++;
+			for(int i = 0; i < childCount && lo < to; i++)
 			{
-				dataSource.readFully(keyBuf, 0, keySize);
-				fileOffset = dataSource.readULong();
-				int cmp = cmp(key, keyBuf, keySize);
-				if(lastCmp >= 0 && cmp <= 0)
+				int hi = to;
+				long nextOffset = 0;
+				if(i + 1 < childCount)
 				{
-					long pos = dataSource.tell();
-					rFindMulti(lastFileOffset, key, resConsumer);
-					dataSource.seek(pos);
+					node.get(nextKey, 0, keySize);
+					nextOffset = Utils.readULong(node);
+					hi = lo;
+					while(hi < to && cmp(keys.get(hi), nextKey, keySize) <= 0)
+						hi++;
 				}
-				if(cmp < 0)
+				if(hi > lo)
+					rFindMulti(fileOffset, depth + 1, keys, lo, hi, resConsumer);
+				//keys equal to the next key are searched in the next child too
+				while(lo < hi && cmp(keys.get(lo), nextKey, keySize) < 0)
+					lo++;
+				fileOffset = nextOffset;
+				byte[] tmp = keyBuf;
+				keyBuf = nextKey;
+				nextKey = tmp;
+			}
+		}
+	}
+	
+	public interface KeyValueVisitor {
+		//@key and @val are reused between calls, return false to stop
+		boolean visit(byte[] key, byte[] val);
+	}
+	
+	//Visit items with keys in [fromKey, toKey) in key order, toKey may be null for unbounded range
+	//Descends to the first leaf that may contain fromKey and then reads leaves sequentially,
+	//leaf level is stored contiguously after the index levels as written by bptFileBulkIndexToOpenFile
+	public void findRange(byte[] fromKey, byte[] toKey, KeyValueVisitor visitor) throws IOException
+	{
+		if(itemCount == 0)
+			return;
+		byte[] from = fromKey.length < keySize ? Arrays.copyOf(fromKey, keySize) : fromKey;
+		byte[] to = toKey == null || toKey.length >= keySize ? toKey : Arrays.copyOf(toKey, keySize);
+		
+		long leafOffset = findLeaf(from, false);
+		long firstLeafOffset = findLeaf(null, true);
+		long leafSize = BLOCK_HEADER_SIZE + (long)blockSize * (keySize + valSize);
+		long leafCount = (itemCount + blockSize - 1) / blockSize;
+		long endOffset = firstLeafOffset + leafCount * leafSize;
+		
+		byte[] keyBuf = new byte[keySize];
+		byte[] valBuf = new byte[valSize];
+		for(; leafOffset < endOffset; leafOffset += leafSize)
+		{
+			ByteBuffer node = readNode(dataSource, leafOffset);
+			if(node.get() != 1)
+				throw new ParseException("Leaf node expected at " + leafOffset);
+			node.get();//reserved
+			int childCount = Short.toUnsignedInt(node.getShort());
+			for(int i = 0; i < childCount; i++)
+			{
+				node.get(keyBuf, 0, keySize);
+				node.get(valBuf, 0, valSize);
+				if(cmp(keyBuf, from) < 0)
+					continue;
+				if(to != null && cmp(keyBuf, to) >= 0)
+					return;
+				if(!visitor.visit(keyBuf, valBuf))
 					return;
-				lastCmp = cmp;
-				lastFileOffset = fileOffset;
 			}
-			rFindMulti(fileOffset, key, resConsumer);
 		}
 	}
-
+	
+	//Visit items with keys starting with @prefix in key order
+	public void findPrefix(byte[] prefix, KeyValueVisitor visitor) throws IOException
+	{
+		byte[] trimmed = Arrays.copyOf(prefix, Math.min(prefix.length, keySize));
+		findRange(trimmed, prefixUpperBound(trimmed), visitor);
+	}
+	
+	//The smallest key greater than all keys starting with @prefix, null if there is no such key
+	static byte[] prefixUpperBound(byte[] prefix)
+	{
+		for(int i = prefix.length - 1; i >= 0; i--)
+			if(prefix[i] != (byte)0xff)
+			{
+				byte[] res = Arrays.copyOf(prefix, i + 1);
+				res[i]++;
+				return res;
+			}
+		return null;
+	}
+	
+	//Offset of the leaf where search for @key should start, or of the first leaf if @leftmost is set
+	private long findLeaf(byte[] key, boolean leftmost) throws IOException
+	{
+		long blockOffset = rootOffset;
+		byte[] keyBuf = new byte[keySize];
+		for(int depth = 0; ; depth++)
+		{
+			ByteBuffer node = getNode(blockOffset, depth);
+			if(node.get() == 1)
+				return blockOffset;
+			node.get();//reserved
+			int childCount = Short.toUnsignedInt(node.getShort());
+			node.position(node.position() + keySize);//discard key
+			long childOffset = Utils.readULong(node);
+			//equal keys may start in the previous child, so go to the last child with key strictly less than @key
+			for(int i = 1; i < childCount && !leftmost; i++)
+			{
+				node.get(keyBuf, 0, keySize);
+				if(cmp(keyBuf, key) >= 0)
+					break;
+				childOffset = Utils.readULong(node);
+			}
+			blockOffset = childOffset;
+		}
+	}
+	
+	//Compare a[aOffset, aOffset+aLength) with b lexicographically as unsigned bytes, shorter is less
+	static int cmp(byte[] a, int aOffset, int aLength, byte[] b) {
+		int n = Math.min(aLength, b.length);
+		for(int i = 0; i < n; i++)
+		{
+			int ai = a[aOffset + i] & 0xff;
+			int bi = b[i] & 0xff;
+			if(ai != bi)
+				return (ai < bi) ? -1 : 1;
+		}
+		return Integer.compare(aLength, b.length);
+	}
 	
 	public void traverse(DataSource d, BiConsumer<byte[], byte[]> kvAction) throws IOException
 	{
@@ -161,32 +383,41 @@ public class BPlusTree {
 	
 	private void traverse(long rootOffset, DataSource d, BiConsumer<byte[], byte[]> kvAction, byte[] keySpace, byte[] valSpace) throws IOException
 	{
-		d.seek(rootOffset);
-		byte isLeaf = d.readByte();
-		byte reserved = d.readByte();
-		int childCount = d.readUShortAsInt();
+		ByteBuffer node = readNode(d, rootOffset);
+		byte isLeaf = node.get();
+		byte reserved = node.get();
+		int childCount = Short.toUnsignedInt(node.getShort());
 		if(isLeaf == 1)
 		{
 			for (int i = 0; i < childCount; i++) {
-				d.readFully(keySpace, 0, keySize);
-				d.readFully(valSpace, 0, valSize);
+				node.get(keySpace, 0, keySize);
+				node.get(valSpace, 0, valSize);
 				kvAction.accept(keySpace, valSpace);
 			}
 		}
 		else
 		{
-			long[] offsets = new long[childCount];
 			for(int i = 0; i < childCount; i++)
 			{
-				d.readFully(keySpace, 0, keySize);
-				long nodeOffset = d.readULong();
-				offsets[i] = nodeOffset;
+				node.position(node.position() + keySize);
+				long nodeOffset = Utils.readULong(node);
+				traverse(nodeOffset, d, kvAction, keySpace, valSpace);
 			}
-			for(int i = 0; i < childCount; i++)
-				traverse(offsets[i], d, kvAction, keySpace, valSpace);
 		}
 	}
 
+	//Compare a[aOffset, aOffset+n) with b[0, n) as unsigned bytes
+	static int cmp(byte[] a, int aOffset, byte[] b, int n) {
+		for(int i = 0; i < n; i++)
+		{
+			int ai = a[aOffset + i] & 0xff;
+			int bi = b[i] & 0xff;
+			if(ai != bi)
+				return (ai < bi) ? -1 : 1;
+		}
+		return 0;
+	}
+	
 	public static int cmp(byte[] a, byte[] b, int n) {
 		for(int i = 0; i < n; i++)
 		{
@@ -210,13 +441,29 @@ public class BPlusTree {
 		return Integer.compare(a.length, b.length);
 	}
 	
+	//Source of items sorted by key, see write(BufferedFileOutput, long, ItemSource, int, int, int)
+	public interface ItemSource {
+		//copy the next item (keySize+valSize bytes, key padded with zeros) to @item
+		void next(byte[] item) throws IOException;
+	}
+	
 	//items in data should be sorted by key
-	//TODO: support data.length > 2^31
-	//This is merely translation to java of kent/src/lib/bbiWite.c:bptFileBulkIndexToOpenFile
-	public static void write(RandomAccessFile out, byte[] data, int keySize, int valSize, int blockSize) throws IOException
+	public static void write(BufferedFileOutput out, byte[] data, int keySize, int valSize, int blockSize) throws IOException
+	{
+		int itemSize = keySize + valSize;
+		int[] pos = {0};
+		write(out, data.length / itemSize, item -> {
+			System.arraycopy(data, pos[0], item, 0, itemSize);
+			pos[0] += itemSize;
+		}, keySize, valSize, blockSize);
+	}
+	
+	//Writes @itemCount items taken from @items in single pass, only the first key of each leaf node is kept in memory:
+	//space for index levels is reserved, leaf nodes are written and then index levels are filled in
+	//Layout is the same as of kent/src/lib/bbiWite.c:bptFileBulkIndexToOpenFile
+	public static void write(BufferedFileOutput out, long itemCount, ItemSource items, int keySize, int valSize, int blockSize) throws IOException
 	{
 		int itemSize = keySize + valSize;
-		int itemCount = data.length / itemSize;
 		int reserved = 0;
 		out.writeInt(MAGIC_BPLUS_TREE);
 		out.writeInt(blockSize);
@@ -228,42 +475,49 @@ public class BPlusTree {
 		long indexOffset = out.getFilePointer();
 		
 		int levels = countLevels(blockSize, itemCount);
-		int i;
-		for (i = levels - 1; i > 0; --i) {
-			long endLevelOffset = writeIndexLevel(blockSize, data, itemSize, itemCount, indexOffset, i, keySize,
+		long indexSize = 0;
+		for(int level = levels - 1; level > 0; --level)
+			indexSize += getNodeCount(blockSize, itemCount, level) * (BLOCK_HEADER_SIZE + blockSize * (long)(keySize + 8));
+		out.writeNBytes((byte)0, indexSize);
+		
+		/* Write leaf nodes */
+		long leafCount = (itemCount + blockSize - 1) / blockSize;
+		if(leafCount * keySize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many items for B+ tree: " + itemCount);
+		byte[] firstKeys = new byte[(int)(leafCount * keySize)];
+		writeLeafLevel(blockSize, items, itemSize, itemCount, keySize, firstKeys, out);
+		long endOffset = out.getFilePointer();
+		
+		out.seek(indexOffset);
+		for (int level = levels - 1; level > 0; --level) {
+			long endLevelOffset = writeIndexLevel(blockSize, firstKeys, itemCount, indexOffset, level, keySize,
 					valSize, out);
 			indexOffset = out.getFilePointer();
 			if (endLevelOffset != indexOffset)
 				throw new AssertionError();
 		}
-
-		/* Write leaf nodes */
-		writeLeafLevel(blockSize, data, itemSize, itemCount,
-		        keySize, valSize, out);
-
-
+		out.seek(endOffset);
 	}
 
-	
-	private static void writeLeafLevel(int blockSize, byte[] data, int itemSize, int itemCount, int keySize,
-			int valSize, RandomAccessFile out) throws IOException {
+	//Writes leaf nodes, the first key of each node is copied to @firstKeys
+	private static void writeLeafLevel(int blockSize, ItemSource items, int itemSize, long itemCount, int keySize,
+			byte[] firstKeys, BufferedFileOutput out) throws IOException {
+		byte[] item = new byte[itemSize];
 		int countOne;// 16bit
-		int countLeft = itemCount;
-		for (int i = 0; i < itemCount; i += countOne) {
+		long countLeft = itemCount;
+		for (long i = 0; i < itemCount; i += countOne) {
 			/* Write block header */
-			if (countLeft > blockSize)
-				countOne = blockSize;
-			else
-				countOne = countLeft;
+			countOne = (int)Math.min(countLeft, blockSize);
 			out.writeByte(1);// isLeaf
 			out.writeByte(0);// reserved
 			out.writeShort(countOne);
 
 			/* Write out position in genome and in file for each item. */
 			for (int j = 0; j < countOne; ++j) {
-				if (i + j >= itemCount)
-					throw new AssertionError();
-				out.write(data, (i + j) * itemSize, itemSize);
+				items.next(item);
+				if (j == 0)
+					System.arraycopy(item, 0, firstKeys, (int)(i / blockSize * keySize), keySize);
+				out.write(item, 0, itemSize);
 			}
 
 			/* Pad out any unused bits of last block with zeroes. */
@@ -271,24 +525,23 @@ public class BPlusTree {
 
 			countLeft -= countOne;
 		}
-
 	}
 
-
-	private static long writeIndexLevel(int blockSize, byte[] data, int itemSize, int itemCount, long indexOffset,
-			int level, int keySize, int valSize, RandomAccessFile out) throws IOException {
+	//Slots of index nodes point to items with indices multiple of blockSize, so their keys are taken from @firstKeys of leaves
+	private static long writeIndexLevel(int blockSize, byte[] firstKeys, long itemCount, long indexOffset,
+			int level, int keySize, int valSize, BufferedFileOutput out) throws IOException {
 		
 		/* Calculate number of nodes to write at this level. */
-		int slotSizePer = xToY(blockSize, level);   // Number of items per slot in node
-		int nodeSizePer = slotSizePer * blockSize;  // Number of items per node
-		int nodeCount = (itemCount + nodeSizePer - 1)/nodeSizePer;
+		long slotSizePer = xToY(blockSize, level);   // Number of items per slot in node
+		long nodeSizePer = slotSizePer * blockSize;  // Number of items per node
+		long nodeCount = getNodeCount(blockSize, itemCount, level);
 
 
 		/* Calculate sizes and offsets. */ 
 		int bytesInIndexBlock = (BLOCK_HEADER_SIZE + blockSize * (keySize+8));
 		int bytesInLeafBlock = (BLOCK_HEADER_SIZE + blockSize * (keySize+valSize));
 		int bytesInNextLevelBlock = (level == 1 ? bytesInLeafBlock : bytesInIndexBlock);
-		int levelSize = nodeCount * bytesInIndexBlock;
+		long levelSize = nodeCount * bytesInIndexBlock;
 		long endLevel = indexOffset + levelSize;
 		long nextChild = endLevel;
 		
@@ -296,9 +549,9 @@ public class BPlusTree {
 		byte isLeaf = 0;
 		byte reserved = 0;
 
-		for (int i = 0; i < itemCount; i += nodeSizePer) {
+		for (long i = 0; i < itemCount; i += nodeSizePer) {
 			/* Calculate size of this block */
-			int countOne = (itemCount - i + slotSizePer - 1) / slotSizePer;
+			long countOne = (itemCount - i + slotSizePer - 1) / slotSizePer;
 			if (countOne > blockSize)
 				countOne = blockSize;
 
@@ -313,7 +566,7 @@ public class BPlusTree {
 			if (endIx > itemCount)
 				endIx = itemCount;
 			for (long j = i; j < endIx; j += slotSizePer) {
-				out.write(data, (int) (j * itemSize), keySize);
+				out.write(firstKeys, (int) (j / blockSize * keySize), keySize);
 				out.writeLong(nextChild);
 				nextChild += bytesInNextLevelBlock;
 				++slotsUsed;
@@ -323,13 +576,17 @@ public class BPlusTree {
 
 			/* Write out empty slots as all zero. */
 			int slotSize = keySize + 8;
-			Utils.writeNBytes(out, (byte) 0, (blockSize - countOne) * slotSize);
+			Utils.writeNBytes(out, (byte) 0, (int)(blockSize - countOne) * slotSize);
 		}
 		return endLevel;
 	}
 
+	private static long getNodeCount(int blockSize, long itemCount, int level) {
+		long nodeSizePer = xToY(blockSize, level) * blockSize;
+		return (itemCount + nodeSizePer - 1) / nodeSizePer;
+	}
 
-	private static int countLevels(int maxBlockSize, int itemCount) {
+	private static int countLevels(int maxBlockSize, long itemCount) {
 		int levels = 1;
 		while (itemCount > maxBlockSize) {
 			itemCount = (itemCount + maxBlockSize - 1) / maxBlockSize;
@@ -340,10 +597,10 @@ public class BPlusTree {
 	}
 	
 	/* Return x to the Y power, with y usually small. */
-	private static int xToY(int x, int y)
+	private static long xToY(int x, int y)
 	{
-		int i, val = 1;
-		for (i = 0; i < y; ++i)
+		long val = 1;
+		for (int i = 0; i < y; ++i)
 			val *= x;
 		return val;
 	}
@@ -0,0 +1,292 @@
+package ru.biosoft.bigbed;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+//Typed access to the rest of line of BigBed record according to AutoSql column definitions
+//Columns are addressed by their index in AutoSql, chrom, chromStart and chromEnd (0..2) are stored in binary form and not available here
+//Fields are located lazily by tab offsets in raw bytes and only requested fields are decoded, numbers are parsed without String allocation
+//Instance is reused for many records with reset(), it is not thread safe
+public class BedFields {
+	public static final int REST_START = 3;
+	
+	enum Kind { INT, FLOAT, STRING }
+	
+	private final AutoSql autoSql;
+	private final Kind[] kinds;
+	private final boolean[] arrays;
+	
+	private byte[] data;
+	private int end;
+	private int[] fieldStart = new int[8];
+	private int[] fieldEnd = new int[8];
+	private int located;//number of fields with known bounds
+	
+	public BedFields(AutoSql autoSql) {
+		this.autoSql = autoSql;
+		List<AutoSql.Column> columns = autoSql.columns;
+		kinds = new Kind[columns.size()];
+		arrays = new boolean[columns.size()];
+		for(int i = 0; i < columns.size(); i++)
+		{
+			String type = columns.get(i).type;
+			int bracket = type.indexOf('[');
+			if(bracket != -1)
+			{
+				arrays[i] = !type.startsWith("char");//char[n] is fixed length string
+				type = type.substring(0, bracket);
+			}
+			kinds[i] = kindOf(type);
+		}
+	}
+	
+	private static Kind kindOf(String type) {
+		switch(type)
+		{
+		case "byte": case "ubyte": case "short": case "ushort": case "int": case "uint": case "bigint":
+			return Kind.INT;
+		case "float": case "double":
+			return Kind.FLOAT;
+		default://string, lstring, char, enum, set
+			return Kind.STRING;
+		}
+	}
+	
+	public AutoSql getAutoSql() {
+		return autoSql;
+	}
+	
+	public int getColumnIndex(String name) {
+		for(int i = 0; i < autoSql.columns.size(); i++)
+			if(autoSql.columns.get(i).name.equals(name))
+				return i;
+		return -1;
+	}
+	
+	//View rest of line stored in data[offset, offset+length)
+	public BedFields reset(byte[] data, int offset, int length) {
+		this.data = data;
+		this.end = offset + length;
+		fieldStart[0] = offset;
+		located = 0;
+		return this;
+	}
+	
+	public BedFields reset(BedEntry entry) {
+		return reset(entry.data, 0, entry.data.length);
+	}
+	
+	//The record should not be used after RecordVisitor.visit() returns
+	public BedFields reset(BedRecord rec) {
+		return reset(rec.block, rec.restOffset, rec.restLength);
+	}
+	
+	//Number of fields in the rest of line
+	public int getRestFieldCount() {
+		while(fieldStart[located] <= end)
+			locateNext();
+		return located;
+	}
+	
+	//Find the end of field number located
+	private void locateNext() {
+		int i = fieldStart[located];
+		while(i < end && data[i] != '\t')
+			i++;
+		if(located + 1 >= fieldStart.length)
+		{
+			fieldStart = Arrays.copyOf(fieldStart, fieldStart.length * 2);
+			fieldEnd = Arrays.copyOf(fieldEnd, fieldEnd.length * 2);
+		}
+		fieldEnd[located] = i;
+		fieldStart[++located] = i + 1;
+	}
+	
+	//Index of field in rest of line
+	private int locate(int column) {
+		int field = column - REST_START;
+		if(field < 0)
+			throw new IllegalArgumentException("Column " + column + " is not in the rest of line");
+		while(located <= field)
+		{
+			if(fieldStart[located] > end)
+				throw new ParseException("Missing column " + columnName(column));
+			locateNext();
+		}
+		return field;
+	}
+	
+	private String columnName(int column) {
+		return column < autoSql.columns.size() ? autoSql.columns.get(column).name : String.valueOf(column);
+	}
+	
+	private Kind kind(int column) {
+		return column < kinds.length ? kinds[column] : Kind.STRING;
+	}
+	
+	private void checkKind(int column, Kind expected, boolean array) {
+		Kind kind = kind(column);
+		boolean isArray = column < arrays.length && arrays[column];
+		if(isArray != array || (expected == Kind.FLOAT ? kind == Kind.STRING : kind != expected))
+			throw new IllegalArgumentException("Column " + columnName(column) + " has type " + (column < kinds.length ? autoSql.columns.get(column).type : "string"));
+	}
+	
+	//Bounds of field in the array passed to reset()
+	int getFieldStart(int column) {
+		return fieldStart[locate(column)];
+	}
+	
+	int getFieldEnd(int column) {
+		return fieldEnd[locate(column)];
+	}
+	
+	public String getString(int column) {
+		int f = locate(column);
+		return new String(data, fieldStart[f], fieldEnd[f] - fieldStart[f], StandardCharsets.UTF_8);
+	}
+	
+	public boolean isEmpty(int column) {
+		int f = locate(column);
+		return fieldStart[f] == fieldEnd[f];
+	}
+	
+	//Compare field with @value byte by byte
+	public boolean fieldEquals(int column, byte[] value) {
+		int f = locate(column);
+		int len = fieldEnd[f] - fieldStart[f];
+		if(len != value.length)
+			return false;
+		for(int i = 0; i < len; i++)
+			if(data[fieldStart[f] + i] != value[i])
+				return false;
+		return true;
+	}
+	
+	public int getInt(int column) {
+		long res = getLong(column);
+		if(res < Integer.MIN_VALUE || res > Integer.MAX_VALUE)
+			throw new ParseException("Value of " + columnName(column) + " does not fit int: " + res);
+		return (int)res;
+	}
+	
+	public long getLong(int column) {
+		checkKind(column, Kind.INT, false);
+		int f = locate(column);
+		return parseLong(fieldStart[f], fieldEnd[f]);
+	}
+	
+	//Works for integer columns too
+	public double getDouble(int column) {
+		checkKind(column, Kind.FLOAT, false);
+		int f = locate(column);
+		return parseDouble(fieldStart[f], fieldEnd[f]);
+	}
+	
+	//Comma separated array, trailing comma is allowed
+	public int[] getIntArray(int column) {
+		checkKind(column, Kind.INT, true);
+		int f = locate(column);
+		int[] res = new int[countItems(fieldStart[f], fieldEnd[f])];
+		int from = fieldStart[f];
+		for(int i = 0; i < res.length; i++)
+		{
+			int to = nextComma(from, fieldEnd[f]);
+			long val = parseLong(from, to);
+			if(val < Integer.MIN_VALUE || val > Integer.MAX_VALUE)
+				throw new ParseException("Value of " + columnName(column) + " does not fit int: " + val);
+			res[i] = (int)val;
+			from = to + 1;
+		}
+		return res;
+	}
+	
+	public double[] getDoubleArray(int column) {
+		checkKind(column, Kind.FLOAT, true);
+		int f = locate(column);
+		double[] res = new double[countItems(fieldStart[f], fieldEnd[f])];
+		int from = fieldStart[f];
+		for(int i = 0; i < res.length; i++)
+		{
+			int to = nextComma(from, fieldEnd[f]);
+			res[i] = parseDouble(from, to);
+			from = to + 1;
+		}
+		return res;
+	}
+	
+	private int nextComma(int from, int to) {
+		while(from < to && data[from] != ',')
+			from++;
+		return from;
+	}
+	
+	private int countItems(int from, int to) {
+		if(from == to)
+			return 0;
+		int res = 1;
+		for(int i = from; i < to; i++)
+			if(data[i] == ',')
+				res++;
+		if(data[to - 1] == ',')
+			res--;
+		return res;
+	}
+	
+	private long parseLong(int from, int to) {
+		int i = from;
+		boolean negative = false;
+		if(i < to && (data[i] == '-' || data[i] == '+'))
+			negative = data[i++] == '-';
+		if(i == to)
+			throw new ParseException("Invalid integer: " + new String(data, from, to - from, StandardCharsets.UTF_8));
+		long res = 0;
+		for(; i < to; i++)
+		{
+			int d = data[i] - '0';
+			if(d < 0 || d > 9 || res > (Long.MAX_VALUE - d) / 10)
+				throw new ParseException("Invalid integer: " + new String(data, from, to - from, StandardCharsets.UTF_8));
+			res = res * 10 + d;
+		}
+		return negative ? -res : res;
+	}
+	
+	private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	
+	private double parseDouble(int from, int to) {
+		//plain decimals with up to 15 digits are exact: both mantissa and power of ten are exact doubles, so division rounds correctly
+		int i = from;
+		boolean negative = false;
+		if(i < to && (data[i] == '-' || data[i] == '+'))
+			negative = data[i++] == '-';
+		long mantissa = 0;
+		int digits = 0, fraction = -1;
+		for(; i < to; i++)
+		{
+			byte c = data[i];
+			if(c == '.' && fraction == -1)
+				fraction = 0;
+			else if(c >= '0' && c <= '9' && digits < 15)
+			{
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if(fraction != -1)
+					fraction++;
+			}
+			else
+				break;
+		}
+		if(i == to && digits > 0)
+		{
+			double res = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+			return negative ? -res : res;
+		}
+		//exponent, long mantissa, nan, inf
+		try {
+			return Double.parseDouble(new String(data, from, to - from, StandardCharsets.UTF_8));
+		} catch(NumberFormatException e) {
+			throw new ParseException("Invalid number: " + new String(data, from, to - from, StandardCharsets.UTF_8));
+		}
+	}
+}
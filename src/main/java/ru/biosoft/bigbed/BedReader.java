@@ -0,0 +1,99 @@
+package ru.biosoft.bigbed;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+//Streaming parser of BED text, columns after the third are kept as BedEntry.data
+//track, browser, comment and empty lines are skipped
+//IOException during iteration is thrown as UncheckedIOException, malformed input as ParseException
+public class BedReader implements Iterator<BedEntry>, Closeable {
+	private final BufferedReader reader;
+	private final ChromDictionary chroms;
+	private int lineNumber;
+	private BedEntry next;
+	
+	public BedReader(Reader reader, List<ChromInfo> chrs)
+	{
+		this.reader = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+		this.chroms = new ChromDictionary(chrs);
+	}
+	
+	@Override
+	public boolean hasNext() {
+		if(next == null)
+		{
+			try
+			{
+				next = readNext();
+			}
+			catch(IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		return next != null;
+	}
+	
+	@Override
+	public BedEntry next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		BedEntry res = next;
+		next = null;
+		return res;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	private BedEntry readNext() throws IOException
+	{
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			lineNumber++;
+			if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+				continue;
+			int chromEnd = nextSeparator(line, 0);
+			int startEnd = nextSeparator(line, chromEnd + 1);
+			int endEnd = nextSeparator(line, startEnd + 1);
+			if(startEnd >= line.length())
+				throw new ParseException("Expecting at least 3 columns at line " + lineNumber + ": " + line);
+			String chrom = line.substring(0, chromEnd);
+			ChromInfo chr = chroms.get(chrom);
+			if(chr == null)
+				throw new ParseException("Unknown chromosome " + chrom + " at line " + lineNumber);
+			BedEntry e;
+			try
+			{
+				e = new BedEntry(chr.id, Integer.parseInt(line.substring(chromEnd + 1, startEnd)), Integer.parseInt(line.substring(startEnd + 1, endEnd)));
+			}
+			catch(NumberFormatException ex)
+			{
+				throw new ParseException("Invalid number at line " + lineNumber + ": " + line, ex);
+			}
+			if(endEnd < line.length())
+				e.data = line.substring(endEnd + 1).getBytes(StandardCharsets.UTF_8);
+			return e;
+		}
+		return null;
+	}
+	
+	//position of the first tab or space at or after @from, line length if there is none
+	private static int nextSeparator(String line, int from)
+	{
+		int i = Math.min(from, line.length());
+		while(i < line.length() && line.charAt(i) != '\t' && line.charAt(i) != ' ')
+			i++;
+		return i;
+	}
+}
@@ -0,0 +1,59 @@
+package ru.biosoft.bigbed;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Reusable view of one BigBed record inside uncompressed block, see RecordVisitor
+public class BedRecord {
+	int chrId;
+	int start, end;
+	byte[] block;
+	int restOffset, restLength;//rest of line (without zero terminator) in block
+	
+	public int getChrId() {
+		return chrId;
+	}
+	
+	public int getStart() {
+		return start;
+	}
+	
+	public int getEnd() {
+		return end;
+	}
+	
+	public int getRestLength() {
+		return restLength;
+	}
+	
+	public byte getRestByte(int i) {
+		if(i < 0 || i >= restLength)
+			throw new IndexOutOfBoundsException(String.valueOf(i));
+		return block[restOffset + i];
+	}
+	
+	public void copyRest(byte[] dst, int dstOffset) {
+		System.arraycopy(block, restOffset, dst, dstOffset, restLength);
+	}
+	
+	//Read only buffer over the rest of line, valid only during RecordVisitor.visit() call
+	public ByteBuffer getRestBuffer() {
+		return ByteBuffer.wrap(block, restOffset, restLength).slice().asReadOnlyBuffer();
+	}
+	
+	public String getRest() {
+		return new String(block, restOffset, restLength, StandardCharsets.UTF_8);
+	}
+	
+	public BedEntry toBedEntry() {
+		BedEntry entry = new BedEntry(chrId, start, end);
+		entry.data = new byte[restLength];
+		copyRest(entry.data, 0);
+		return entry;
+	}
+	
+	@Override
+	public String toString() {
+		return "BedRecord [chrId=" + chrId + ", start=" + start + ", end=" + end + "]";
+	}
+}
@@ -0,0 +1,73 @@
+package ru.biosoft.bigbed;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+//External sort of BedEntry by BigBedWriter.SITE_ORDER, see ExternalSorter
+class BedSorter extends ExternalSorter<BedEntry> {
+	private static final int ENTRY_OVERHEAD = 64;//approximate memory taken by BedEntry object besides data bytes
+
+	private long totalLength;
+
+	BedSorter(long memoryLimit, File tempDir)
+	{
+		super(BigBedWriter.SITE_ORDER, memoryLimit, tempDir);
+	}
+
+	@Override
+	void add(BedEntry e) throws IOException
+	{
+		if(e.end < e.start)
+			throw new IllegalArgumentException("Site end is before start: " + e);
+		totalLength += e.end - e.start;
+		super.add(e);
+	}
+
+	long getTotalLength()
+	{
+		return totalLength;
+	}
+
+	@Override
+	protected long memorySize(BedEntry e)
+	{
+		return ENTRY_OVERHEAD + (e.data == null ? 0 : e.data.length);
+	}
+
+	//Run encoding: varint chrId, varint start (delta to previous start within chromosome), varint length,
+	//varint data length + 1 (0 for null data), data bytes
+	@Override
+	protected void write(DataOutputStream out, BedEntry e, BedEntry prev) throws IOException
+	{
+		writeVarInt(out, e.chrId);
+		writeVarInt(out, prev != null && e.chrId == prev.chrId ? e.start - prev.start : e.start);
+		writeVarInt(out, e.end - e.start);
+		if(e.data == null)
+			writeVarInt(out, 0);
+		else
+		{
+			writeVarInt(out, e.data.length + 1);
+			out.write(e.data);
+		}
+	}
+
+	@Override
+	protected BedEntry read(DataInputStream in, BedEntry prev) throws IOException
+	{
+		int chrId = readVarInt(in);
+		int start = readVarInt(in);
+		if(prev != null && chrId == prev.chrId)
+			start += prev.start;
+		int end = start + readVarInt(in);
+		BedEntry e = new BedEntry(chrId, start, end);
+		int dataLength = readVarInt(in);
+		if(dataLength > 0)
+		{
+			e.data = new byte[dataLength - 1];
+			in.readFully(e.data);
+		}
+		return e;
+	}
+}
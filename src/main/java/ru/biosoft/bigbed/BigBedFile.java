@@ -3,11 +3,19 @@ package ru.biosoft.bigbed;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
+//BigBed file reader, queries are thread safe once the file is read
 public class BigBedFile extends BigFile<BedEntry> {
 	
 	//extension
@@ -25,9 +33,22 @@ public class BigBedFile extends BigFile<BedEntry> {
 		return res;
 	}
 	
+	public static BigBedFile read(String source, BigFileOptions options) throws ParseException, IOException
+	{
+		BigBedFile res = new BigBedFile(source, options);
+		res.read();
+		return res;
+	}
+	
 	BigBedFile(String source)
 	{
-		super(source);
+		this(source, new BigFileOptions());
+	}
+	
+	BigBedFile(String source, BigFileOptions options)
+	{
+		super(source, options);
+		blockRecordCounts = options.blockCountCacheSize > 0 ? new BlockCountCache(options.blockCountCacheSize) : null;
 	}
 	
 	void read() throws IOException, ParseException
@@ -48,43 +69,185 @@ public class BigBedFile extends BigFile<BedEntry> {
 	
 	@Override
 	protected boolean parseBlock(int chromId, int start, int end, int maxItems, ByteBuffer block, List<BedEntry> result) {
+		return visitBlock(chromId, start, end, block, new BedRecord(), rec -> {
+			result.add(rec.toBedEntry());
+			return maxItems <= 0 || result.size() < maxItems;
+		});
+	}
+	
+	@Override
+	void routeBlock(ByteBuffer block, RegionRouter<BedEntry> router) {
+		byte[] array = block.array();
+		int limit = block.arrayOffset() + block.limit();
+		BedRecord rec = new BedRecord();
+		rec.block = array;
+		while(block.hasRemaining() && !router.isDone()) {
+			rec.chrId = Utils.readUInt(block);
+			rec.start = Utils.readUInt(block);
+			rec.end = Utils.readUInt(block);
+			rec.restOffset = block.arrayOffset() + block.position();
+			int restEnd = findTerminator(array, rec.restOffset, limit);
+			rec.restLength = restEnd - rec.restOffset;
+			block.position(Math.min(restEnd + 1, limit) - block.arrayOffset());//skip zero terminator
+			int n = router.match(rec.chrId, rec.start, rec.end);
+			for(int i = 0; i < n; i++)
+				router.target(i).add(rec.toBedEntry());
+		}
+	}
+	
+	//Pass records overlapping the region to visitor reusing @rec, returns false if visitor stopped
+	private boolean visitBlock(int chromId, int start, int end, ByteBuffer block, BedRecord rec, RecordVisitor<BedRecord> visitor) {
+		byte[] array = block.array();
+		int limit = block.arrayOffset() + block.limit();
 		while(block.hasRemaining()) {
 			int resChrId = Utils.readUInt(block);
 			int resStart = Utils.readUInt(block);
 			int resEnd = Utils.readUInt(block);
 
-			block.mark();
-			int restLen = 0;
-			while(block.hasRemaining() && block.get() != 0)
-				restLen++;
+			//records are sorted by (chrId, start), nothing overlaps the region after this one
+			if(resChrId > chromId || (resChrId == chromId && resStart > end))
+				return true;
+			
+			int restOffset = block.arrayOffset() + block.position();
+			int restEnd = findTerminator(array, restOffset, limit);
+			block.position(Math.min(restEnd + 1, limit) - block.arrayOffset());//skip zero terminator
 			
 			 if (resChrId == chromId
 		      && ( (resStart < end && resEnd > start)
 		                // Make sure to include zero-length insertion elements at start or end:
 		           || (resStart == resEnd && (resStart == end || resEnd == start))) )
 		     {
-		         BedEntry entry = new BedEntry(resChrId, resStart, resEnd);
-		         block.reset();
-		         entry.data = new byte[restLen];
-		         block.get(entry.data);
-		         block.get();//skip zero terminator
-		         result.add(entry);
-		         if(maxItems > 0 && result.size() >= maxItems)
+		         rec.chrId = resChrId;
+		         rec.start = resStart;
+		         rec.end = resEnd;
+		         rec.block = array;
+		         rec.restOffset = restOffset;
+		         rec.restLength = restEnd - restOffset;
+		         if(!visitor.visit(rec))
 		        	 return false;
 		      }
 
 		}
-		if(maxItems > 0 && result.size() >= maxItems)
-			return false;
 		return true;
-		
+	}
+	
+	//Index of the zero byte terminating rest of line starting at @from, or @limit if there is none
+	private static int findTerminator(byte[] array, int from, int limit) {
+		int i = from;
+		//rest of line is mostly short, check 4 bytes per iteration to reduce loop overhead
+		for(; i + 3 < limit; i += 4)
+		{
+			if(array[i] == 0)
+				return i;
+			if(array[i+1] == 0)
+				return i+1;
+			if(array[i+2] == 0)
+				return i+2;
+			if(array[i+3] == 0)
+				return i+3;
+		}
+		while(i < limit && array[i] != 0)
+			i++;
+		return i;
+	}
+	
+	//Visit records overlapping the region without allocating objects per record, see RecordVisitor
+	//returns false if visitor stopped the query
+	public boolean queryIntervals(String chrom, int start, int end, RecordVisitor<BedRecord> visitor) throws IOException {
+		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo == null)
+			return true;
+		int chromId = chrInfo.id;
+		BedRecord rec = new BedRecord();
+		return readBlocks(chromId, start, end, (block, bb) -> visitBlock(chromId, start, end, bb, rec, visitor));
 	}
 	
 
+	//Number of records in blocks by block offset, filled by countIntervals; null when disabled
+	private final BlockCountCache blockRecordCounts;
+	
+	//Number of records overlapping the region, records are not materialized
+	//Blocks lying entirely inside the region are counted without coordinate checks
+	//Counts are reused only after a block has been scanned once, at most BigFileOptions.blockCountCacheSize counts are kept
+	public int countIntervals(String chrom, int start, int end) throws IOException {
+		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo == null)
+			return 0;
+		int chromId = chrInfo.id;
+		initRTree();
+		
+		int paddedStart = (start > 0) ? start-1 : start;
+		int paddedEnd = end+1;
+		
+		int[] count = {0};
+		List<OffsetSize> blockList = new ArrayList<>();
+		List<Boolean> containedList = new ArrayList<>();
+		rTree.findOverlappingLeaves(chromId, paddedStart, paddedEnd, dataSource, leaf -> {
+			boolean contained = leaf.startChromIdx == chromId && leaf.endChromIdx == chromId
+					&& leaf.startBase >= start && leaf.endBase <= end;
+			if(contained && blockRecordCounts != null)
+			{
+				Integer blockCount = blockRecordCounts.get(leaf.offset);
+				if(blockCount != null)
+				{
+					count[0] += blockCount;
+					return;
+				}
+			}
+			blockList.add(new OffsetSize(leaf.offset, leaf.size));
+			containedList.add(contained);
+		});
+		
+		BlockReader reader = new BlockReader(this, blockList);
+		for(int i = 0; reader.hasNext(); i++)
+		{
+			ByteBuffer bb = reader.next();
+			if(containedList.get(i))
+			{
+				int blockCount = countBlock(-1, 0, 0, bb);
+				if(blockRecordCounts != null)
+					blockRecordCounts.put(reader.current().offset, blockCount);
+				count[0] += blockCount;
+			}
+			else
+				count[0] += countBlock(chromId, start, end, bb);
+		}
+		return count[0];
+	}
+	
+	//Count records overlapping the region, or all records when chromId is -1
+	private static int countBlock(int chromId, int start, int end, ByteBuffer block) {
+		byte[] array = block.array();
+		int limit = block.arrayOffset() + block.limit();
+		int pos = block.arrayOffset() + block.position();
+		int res = 0;
+		while(pos < limit) {
+			int resChrId = block.getInt(pos - block.arrayOffset());
+			int resStart = block.getInt(pos - block.arrayOffset() + 4);
+			int resEnd = block.getInt(pos - block.arrayOffset() + 8);
+			if(chromId != -1 && (resChrId > chromId || (resChrId == chromId && resStart > end)))
+				break;
+			pos = findTerminator(array, pos + 12, limit) + 1;
+			if(chromId == -1 || (resChrId == chromId
+					&& ( (resStart < end && resEnd > start)
+					|| (resStart == resEnd && (resStart == end || resEnd == start)) )))
+				res++;
+		}
+		return res;
+	}
+	
 	private AutoSql autoSql;
 	public AutoSql getAutoSql() {
 		return autoSql;
 	}
+	//Typed field accessor for records of this file, uses default bed definitions if the file has no AutoSql
+	public BedFields createBedFields() {
+		if(autoSql != null)
+			return new BedFields(autoSql);
+		int bedFieldCount = Math.max(3, Math.min(15, header.definedFieldCount));
+		return new BedFields(AutoSql.defaultBed(bedFieldCount, Math.max(bedFieldCount, header.fieldCount)));
+	}
+	
 	private void readAutoSql() throws IOException {
 		if(header.autoSqlOffset == 0L)
 			return;
@@ -136,6 +299,32 @@ public class BigBedFile extends BigFile<BedEntry> {
 	}
 	
 	public List<BedEntry> queryExtraIndex(String indexName, String query, int maxItems) throws IOException
+	{
+		return queryExtraIndex(findExtraIndex(indexName), query, maxItems);
+	}
+	
+	public List<BedEntry> queryExtraIndex(int colIdx, String query, int maxItems) throws IOException
+	{
+		return queryExtraIndex(findExtraIndex(colIdx), query, maxItems);
+	}
+	
+	//B+ trees of extra indices are kept to reuse their cached upper nodes
+	private final Map<Long, BPlusTree> extraIndexTrees = new ConcurrentHashMap<>();
+	
+	private BPlusTree getExtraIndexTree(ExtraIndex extraIndex) throws IOException
+	{
+		BPlusTree tree = extraIndexTrees.get(extraIndex.fileOffset);
+		if(tree == null)
+		{
+			tree = new BPlusTree(dataSource, extraIndex.fileOffset);
+			BPlusTree prev = extraIndexTrees.putIfAbsent(extraIndex.fileOffset, tree);
+			if(prev != null)
+				tree = prev;
+		}
+		return tree;
+	}
+	
+	private ExtraIndex findExtraIndex(String indexName)
 	{
 		if(autoSql == null)
 			throw new ParseException("Can not query extra index without autosql");
@@ -150,28 +339,186 @@ public class BigBedFile extends BigFile<BedEntry> {
 		}
 		if(colIdx == -1)
 			throw new ParseException("Index " + indexName + " not found");
-		return queryExtraIndex(colIdx, query, maxItems);		
+		return findExtraIndex(colIdx);
 	}
 	
-	public List<BedEntry> queryExtraIndex(int colIdx, String query, int maxItems) throws IOException
+	private ExtraIndex findExtraIndex(int colIdx)
 	{
-		ExtraIndex extraIndex = null;
 		for(ExtraIndex e : extraIndices)
 			if(e.colIdx == colIdx)
+				return e;
+		throw new ParseException("Column " + colIdx + " is not indexed");
+	}
+	
+	//Batch lookup of many keys, returns entries for every key (empty list if not found) in the order of @queries
+	//The index is descended once for all keys, blocks are read once with merged reads of contiguous blocks
+	//@maxItems limits the number of entries per key
+	public Map<String, List<BedEntry>> queryExtraIndex(String indexName, Collection<String> queries, int maxItems) throws IOException
+	{
+		return queryExtraIndex(findExtraIndex(indexName), queries, maxItems);
+	}
+	
+	public Map<String, List<BedEntry>> queryExtraIndex(ExtraIndex extraIndex, Collection<String> queries, int maxItems) throws IOException
+	{
+		Map<String, List<BedEntry>> result = new LinkedHashMap<>();
+		BPlusTree bpTree = getExtraIndexTree(extraIndex);
+		
+		//unique keys sorted as in the tree
+		Map<ByteBuffer, String> keyByBytes = new HashMap<>();
+		List<byte[]> keys = new ArrayList<>();
+		for(String query : queries)
+		{
+			if(result.containsKey(query))
+				continue;
+			result.put(query, new ArrayList<>());
+			byte[] bytes = query.getBytes();
+			if(bytes.length > bpTree.keySize)
+				continue;
+			keyByBytes.put(ByteBuffer.wrap(bytes), query);
+			keys.add(Arrays.copyOf(bytes, bpTree.keySize));
+		}
+		keys.sort((a, b) -> BPlusTree.cmp(a, b, bpTree.keySize));
+		
+		Map<Long, OffsetSize> blocks = new TreeMap<>();
+		bpTree.findMulti(keys, (keyIdx, rawVal) -> {
+			OffsetSize block = OffsetSize.parse(rawVal, dataSource.order());
+			blocks.putIfAbsent(block.offset, block);
+		});
+		
+		BedFields fields = createBedFields();
+		readBlocks(new ArrayList<>(blocks.values()), (block, bb) -> {
+			byte[] array = bb.array();
+			int limit = bb.arrayOffset() + bb.limit();
+			while(bb.hasRemaining()) {
+				int resChrId = Utils.readUInt(bb);
+				int resStart = Utils.readUInt(bb);
+				int resEnd = Utils.readUInt(bb);
+				
+				int restOffset = bb.arrayOffset() + bb.position();
+				int restEnd = findTerminator(array, restOffset, limit);
+				bb.position(Math.min(restEnd + 1, limit) - bb.arrayOffset());//skip zero terminator
+				
+				fields.reset(array, restOffset, restEnd - restOffset);
+				int fieldStart = fields.getFieldStart(extraIndex.colIdx);
+				String key = keyByBytes.get(ByteBuffer.wrap(array, fieldStart, fields.getFieldEnd(extraIndex.colIdx) - fieldStart));
+				if(key == null)
+					continue;
+				List<BedEntry> entries = result.get(key);
+				if(maxItems > 0 && entries.size() >= maxItems)
+					continue;
+				BedEntry entry = new BedEntry(resChrId, resStart, resEnd);
+				entry.data = Arrays.copyOfRange(array, restOffset, restEnd);
+				entries.add(entry);
+			}
+			return true;
+		});
+		return result;
+	}
+	
+	//Distinct keys of extra index starting with @prefix in sorted order, e.g. for name autocompletion
+	public List<String> listExtraIndexKeys(String indexName, String prefix, int maxItems) throws IOException
+	{
+		BPlusTree bpTree = getExtraIndexTree(findExtraIndex(indexName));
+		List<String> result = new ArrayList<>();
+		bpTree.findPrefix(prefix.getBytes(), (key, val) -> {
+			String str = keyToString(key);
+			if(result.isEmpty() || !result.get(result.size() - 1).equals(str))
 			{
-				extraIndex = e;
-				break;
+				if(maxItems > 0 && result.size() >= maxItems)
+					return false;
+				result.add(str);
+			}
+			return true;
+		});
+		return result;
+	}
+	
+	//Entries with indexed field starting with @prefix, sorted by the field
+	public List<BedEntry> queryExtraIndexPrefix(String indexName, String prefix, int maxItems) throws IOException
+	{
+		byte[] from = prefix.getBytes();
+		return queryExtraIndexRange(findExtraIndex(indexName), from, BPlusTree.prefixUpperBound(from), maxItems);
+	}
+	
+	//Entries with indexed field in [from, to), sorted by the field; @to may be null for unbounded range
+	public List<BedEntry> queryExtraIndexRange(String indexName, String from, String to, int maxItems) throws IOException
+	{
+		return queryExtraIndexRange(findExtraIndex(indexName), from.getBytes(), to == null ? null : to.getBytes(), maxItems);
+	}
+	
+	private List<BedEntry> queryExtraIndexRange(ExtraIndex extraIndex, byte[] from, byte[] to, int maxItems) throws IOException
+	{
+		BPlusTree bpTree = getExtraIndexTree(extraIndex);
+		//each index item refers to single record, so the first maxItems items are enough
+		Map<Long, OffsetSize> blocks = new TreeMap<>();
+		byte[][] lastKey = {null};
+		int[] count = {0};
+		bpTree.findRange(from, to, (key, val) -> {
+			OffsetSize block = OffsetSize.parse(val, dataSource.order());
+			blocks.putIfAbsent(block.offset, block);
+			if(maxItems > 0 && ++count[0] >= maxItems)
+			{
+				lastKey[0] = keyToString(key).getBytes();
+				return false;
 			}
-		if(extraIndex == null)
-			throw new ParseException("Column " + colIdx + " is not indexed");
-		return queryExtraIndex(extraIndex, query, maxItems);
+			return true;
+		});
+		
+		List<byte[]> entryKeys = new ArrayList<>();
+		List<BedEntry> entries = new ArrayList<>();
+		BedFields fields = createBedFields();
+		readBlocks(new ArrayList<>(blocks.values()), (block, bb) -> {
+			byte[] array = bb.array();
+			int limit = bb.arrayOffset() + bb.limit();
+			while(bb.hasRemaining()) {
+				int resChrId = Utils.readUInt(bb);
+				int resStart = Utils.readUInt(bb);
+				int resEnd = Utils.readUInt(bb);
+				
+				int restOffset = bb.arrayOffset() + bb.position();
+				int restEnd = findTerminator(array, restOffset, limit);
+				bb.position(Math.min(restEnd + 1, limit) - bb.arrayOffset());//skip zero terminator
+				
+				fields.reset(array, restOffset, restEnd - restOffset);
+				int fieldStart = fields.getFieldStart(extraIndex.colIdx);
+				int fieldLength = fields.getFieldEnd(extraIndex.colIdx) - fieldStart;
+				if(BPlusTree.cmp(array, fieldStart, fieldLength, from) < 0
+						|| (to != null && BPlusTree.cmp(array, fieldStart, fieldLength, to) >= 0)
+						|| (lastKey[0] != null && BPlusTree.cmp(array, fieldStart, fieldLength, lastKey[0]) > 0))
+					continue;
+				BedEntry entry = new BedEntry(resChrId, resStart, resEnd);
+				entry.data = Arrays.copyOfRange(array, restOffset, restEnd);
+				entries.add(entry);
+				entryKeys.add(Arrays.copyOfRange(array, fieldStart, fieldStart + fieldLength));
+			}
+			return true;
+		});
+		
+		//stable sort by key keeps file order of entries with equal keys
+		Integer[] order = new Integer[entries.size()];
+		for(int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> BPlusTree.cmp(entryKeys.get(a), entryKeys.get(b)));
+		List<BedEntry> result = new ArrayList<>();
+		for(int i = 0; i < order.length && (maxItems <= 0 || i < maxItems); i++)
+			result.add(entries.get(order[i]));
+		return result;
+	}
+	
+	//Key of B+ tree without zero padding
+	private static String keyToString(byte[] key)
+	{
+		int length = 0;
+		while(length < key.length && key[length] != 0)
+			length++;
+		return new String(key, 0, length);
 	}
 	
 	public List<BedEntry> queryExtraIndex(ExtraIndex extraIndex, String query, int maxItems) throws IOException
 	{
 		List<BedEntry> result = new ArrayList<BedEntry>();
 		
-		BPlusTree bpTree = new BPlusTree(dataSource, extraIndex.fileOffset);
+		BPlusTree bpTree = getExtraIndexTree(extraIndex);
 		
 		List<OffsetSize> blocks = new ArrayList<>();
 		bpTree.findMulti(query.getBytes(), rawVal->{
@@ -195,54 +542,31 @@ public class BigBedFile extends BigFile<BedEntry> {
 			prev = cur;
 		}
 		
-		byte[] uncompressedBuf = null;
-		if(header.uncompressBufSize > 0)
-			uncompressedBuf = new byte[header.uncompressBufSize];
-		
-		for(OffsetSize block : uBlocks)
-		{
-			dataSource.seek(block.offset);
-			int bufLength = (int)block.size;
-			byte[] buf = new byte[bufLength];
-			dataSource.readFully(buf, 0, bufLength);
-    		if(uncompressedBuf != null)
-    		{
-    			bufLength = Utils.uncompress(buf, 0, bufLength, uncompressedBuf);
-    			buf = uncompressedBuf;
-    		}
-    		
-    		ByteBuffer bb = ByteBuffer.wrap(buf, 0, bufLength);
-    		bb.order(dataSource.order());
-    		
-    		while(bb.hasRemaining()) {
-    			int resChrId = Utils.readUInt(bb);
-    			int resStart = Utils.readUInt(bb);
-    			int resEnd = Utils.readUInt(bb);
-
-    			BedEntry entry = new BedEntry(resChrId, resStart, resEnd);
-    			
-    			bb.mark();
-    			int restLen = 0;
-    			while(bb.hasRemaining() && bb.get() != 0)
-    				restLen++;
-    			bb.reset();
-		        entry.data = new byte[restLen];
-		        bb.get(entry.data);
-		        bb.get();//skip zero terminator
-    			
-		        
-		        String data = new String(entry.data);
-		        String[] fields = data.split("\t");
-		        if(query.equals(fields[extraIndex.colIdx - 3]))
-    		    {
-    				result.add(entry);
-    		        if(maxItems > 0 && result.size() >= maxItems)
-    		        	return result;
-    		    }
-
-    		}
-    		
-		}
+		BedFields fields = createBedFields();
+		byte[] queryBytes = query.getBytes();
+		readBlocks(uBlocks, (block, bb) -> {
+			byte[] array = bb.array();
+			int limit = bb.arrayOffset() + bb.limit();
+			while(bb.hasRemaining()) {
+				int resChrId = Utils.readUInt(bb);
+				int resStart = Utils.readUInt(bb);
+				int resEnd = Utils.readUInt(bb);
+				
+				int restOffset = bb.arrayOffset() + bb.position();
+				int restEnd = findTerminator(array, restOffset, limit);
+				bb.position(Math.min(restEnd + 1, limit) - bb.arrayOffset());//skip zero terminator
+				
+				if(fields.reset(array, restOffset, restEnd - restOffset).fieldEquals(extraIndex.colIdx, queryBytes))
+				{
+					BedEntry entry = new BedEntry(resChrId, resStart, resEnd);
+					entry.data = Arrays.copyOfRange(array, restOffset, restEnd);
+					result.add(entry);
+					if(maxItems > 0 && result.size() >= maxItems)
+						return false;
+				}
+			}
+			return true;
+		});
 		
 		return result;			
 	}
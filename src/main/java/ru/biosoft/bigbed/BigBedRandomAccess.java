@@ -6,11 +6,8 @@ import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
 
 import ru.biosoft.bigbed.RTreeIndex.LeafNode;
 
@@ -39,31 +36,8 @@ public class BigBedRandomAccess {
 		Long keyTo = idxToOffset.floorKey(from + size - 1);
 		SortedMap<Long, OffsetSize> blocks = idxToOffset.subMap(keyFrom, true, keyTo, true);
 
-		int uncompressedBufSize = bbFile.header.uncompressBufSize;
-		byte[] uncompressed = null;
-		if (uncompressedBufSize > 0)
-			uncompressed = new byte[uncompressedBufSize];
-		DataSource input = bbFile.dataSource;
-
-		long skip = -1;
-		for (Map.Entry<Long, OffsetSize> entry : blocks.entrySet()) {
-			if (skip == -1)
-				skip = from - entry.getKey();
-			OffsetSize block = entry.getValue();
-
-			input.seek(block.offset);
-			int blockSize = (int) block.size;
-			byte[] blockData = new byte[blockSize];
-
-			input.readFully(blockData, 0, blockSize);
-
-			if (uncompressedBufSize > 0) {
-				blockSize = Utils.uncompress(blockData, 0, (int) block.size, uncompressed);
-				blockData = uncompressed;
-			}
-
-			ByteBuffer buf = ByteBuffer.wrap(blockData, 0, blockSize);
-			buf.order(input.order());
+		long[] skip = {from - keyFrom};
+		bbFile.readBlocks(new ArrayList<>(blocks.values()), (block, buf) -> {
 			while (buf.hasRemaining()) {
 				int chrId = buf.getInt();
 				int start = buf.getInt();
@@ -74,7 +48,7 @@ public class BigBedRandomAccess {
 				while (buf.hasRemaining() && buf.get() != 0)
 					restLen++;
 
-				if (skip == 0) {
+				if (skip[0] == 0) {
 
 					BedEntry bed = new BedEntry(chrId, start, end);
 					buf.reset();
@@ -83,12 +57,13 @@ public class BigBedRandomAccess {
 					buf.get();// skip zero terminator
 					result.add(bed);
 					if (result.size() >= size)
-						return result;
+						return false;
 				} else {
-					skip--;
+					skip[0]--;
 				}
 			}
-		}
+			return true;
+		});
 
 		return result;
 	}
@@ -108,14 +83,12 @@ public class BigBedRandomAccess {
 				if (prev.startChromIdx != node.startChromIdx) {
 					// node and prev on distinct chromosomes
 					// last block on chromosome maybe not full (<=itemsPerSlot)
-					siteCount += countInCompressedBlock(bbFile.dataSource, prev.offset, prev.size,
-							bbFile.header.uncompressBufSize);
+					siteCount += countInBlock(prev.offset, prev.size);
 				} else {
 					// leaf and prev on same chromosomes
 					// assume that prev block is full in this case
 					if (itemsPerSlot == -1) {
-						itemsPerSlot = countInCompressedBlock(bbFile.dataSource, prev.offset, prev.size,
-								bbFile.header.uncompressBufSize);
+						itemsPerSlot = countInBlock(prev.offset, prev.size);
 					}
 					siteCount += itemsPerSlot;
 				}
@@ -126,35 +99,13 @@ public class BigBedRandomAccess {
 
 		if (prev != null)// last block
 		{
-			siteCount += itemsPerSlot = countInCompressedBlock(bbFile.dataSource, prev.offset, prev.size,
-					bbFile.header.uncompressBufSize);
+			siteCount += itemsPerSlot = countInBlock(prev.offset, prev.size);
 		}
 	}
 
-	private int countInCompressedBlock(DataSource input, long offset, long size, int uncompressedBufSize)
-			throws IOException {
-		input.seek(offset);
-		byte[] buf = new byte[(int) size];
-		input.readFully(buf, 0, buf.length);
-		if (bbFile.header.uncompressBufSize > 0)
-			return countInCompressedBlock(buf, uncompressedBufSize, input.order());
-		else
-			return countInUncompressedBlock(buf, 0, buf.length, input.order());
-	}
-
-	private int countInCompressedBlock(byte[] compressed, int uncompressedBufSize, ByteOrder order) throws IOException {
-		Inflater inflater = new Inflater();
-		inflater.setInput(compressed);
-		byte[] uncompressed = new byte[uncompressedBufSize];
-		int uncompressedLen;
-		try {
-			uncompressedLen = inflater.inflate(uncompressed);
-		} catch (DataFormatException e) {
-			throw new ParseException(e);
-		}
-		if (inflater.getRemaining() > 0)
-			throw new ParseException("extra bytes after compressed block");
-		return countInUncompressedBlock(uncompressed, 0, uncompressedLen, order);
+	private int countInBlock(long offset, long size) throws IOException {
+		ByteBuffer block = bbFile.readBlock(new OffsetSize(offset, size));
+		return countInUncompressedBlock(block.array(), block.position(), block.remaining(), block.order());
 	}
 
 	private int countInUncompressedBlock(byte[] uncompressed, int uncompressedOffset, int uncompressedLen,
@@ -1,10 +1,12 @@
 package ru.biosoft.bigbed;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
@@ -13,126 +15,189 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import ru.biosoft.bigbed.RTreeIndexBuilder.RTree;
 
 public class BigBedWriter {
+	
+	static final Comparator<BedEntry> SITE_ORDER = Comparator.<BedEntry>comparingInt(e->e.chrId).thenComparingInt(e->e.start);
 
 	//chrs must fulfill chrs[i].id = i
 	public static void write(List<BedEntry> sites, List<ChromInfo> chrs, File outFile, BigBedWriterOptions options) throws IOException
 	{
-		Comparator<BedEntry> cmp = Comparator.comparingInt(e->e.chrId);
-		cmp = cmp.thenComparingInt(e->e.start);
-		sites.sort(cmp);
-		
-		
-		RandomAccessFile out = new RandomAccessFile(outFile, "rw");
+		sites.sort(SITE_ORDER);
+		long totalLength = 0;
+		for(BedEntry e : sites)
+			totalLength += e.end - e.start;
+		writeSorted(sites.iterator(), sites.size(), totalLength, chrs, outFile, options);
+	}
+	
+	//Streaming write for inputs larger than heap, @sites may come in any order
+	//Sites are sorted in chunks of options.sortMemory bytes, chunks are spilled to temporary files and merged while writing
+	public static void write(Iterator<BedEntry> sites, List<ChromInfo> chrs, File outFile, BigBedWriterOptions options) throws IOException
+	{
+		try(BedSorter sorter = new BedSorter(options.sortMemory, options.tempDir))
+		{
+			while(sites.hasNext())
+				sorter.add(sites.next());
+			writeSorted(sorter.sorted(), sorter.getCount(), sorter.getTotalLength(), chrs, outFile, options);
+		}
+	}
+	
+	//Streaming write of BED file, see BedReader
+	public static void write(File bedFile, List<ChromInfo> chrs, File outFile, BigBedWriterOptions options) throws IOException
+	{
+		try(BedReader reader = new BedReader(new InputStreamReader(new FileInputStream(bedFile), StandardCharsets.UTF_8), chrs))
+		{
+			write(reader, chrs, outFile, options);
+		}
+	}
+	
+	//@sites are sorted by SITE_ORDER, everything is computed in single pass over them
+	private static void writeSorted(Iterator<BedEntry> sites, long siteCount, long totalLength, List<ChromInfo> chrs, File outFile, BigBedWriterOptions options) throws IOException
+	{
+		BedEntry first = sites.hasNext() ? sites.next() : null;
 		
-		Utils.writeNBytes(out, (byte)0, 64);//dummy header
-		//Utils.writeNBytes(out, (byte)0, BigBedFile.MAX_ZOOM_LEVELS*24);//dummy zoom levels	
+		try(BufferedFileOutput out = new BufferedFileOutput(outFile))
+		{
+			Utils.writeNBytes(out, (byte)0, 64);//dummy header
+			Utils.writeNBytes(out, (byte)0, BigBedFile.MAX_ZOOM_LEVELS*24);//dummy zoom levels
 		
 
-		if(options.bedN < 3 || options.bedN > 15)
-			options.bedN = 3;
+			if(options.bedN < 3 || options.bedN > 15)
+				options.bedN = 3;
 		
-		if(options.autoSql == null)
-		{
-			int nColumns = 3;
-			if(sites.size() > 0) {
-				BedEntry first = sites.get(0);
-				if(first.data != null)
+			if(options.autoSql == null)
+			{
+				int nColumns = 3;
+				if(first != null && first.data != null)
 					nColumns += new String(first.data).split(options.fieldSep).length;
+				options.autoSql = AutoSql.defaultBed(options.bedN, nColumns);
 			}
-			options.autoSql = AutoSql.defaultBed(options.bedN, nColumns);
-		}
-		long asOffset = out.getFilePointer();
-		out.write(options.autoSql.toString().getBytes(StandardCharsets.UTF_8));
-		out.writeByte(0);
-		
-		long totalSummaryOffset = out.getFilePointer();
-		SummaryElement totalSummary = new SummaryElement();
-		totalSummary.compute(sites.iterator());
-		totalSummary.write(out);
-		
-		boolean haveExtraIndex = options.extraIndexColumns != null && options.extraIndexColumns.length > 0;
-		long extensionHeaderOffset = out.getFilePointer();
-		int extHeaderSize = 64;
-		long extraIndexListOffset;
-		if(haveExtraIndex)
-		{
-			extraIndexListOffset = extensionHeaderOffset + extHeaderSize;
-			//out.seek(extensionHeaderOffset);
-			out.writeShort(extHeaderSize);
-			out.writeShort(options.extraIndexColumns.length);
-			out.writeLong(extraIndexListOffset);
-			Utils.writeNBytes(out, (byte)0, extHeaderSize-12);
-			
-			//reserve space for extra index headers
-			Utils.writeNBytes(out, (byte)0, options.extraIndexColumns.length*20);
-		}else
-		{
-			extraIndexListOffset = 0;
-			out.writeShort(extHeaderSize);
-			Utils.writeNBytes(out, (byte)0, extHeaderSize-2);
-		}
+			long asOffset = out.getFilePointer();
+			out.write(options.autoSql.toString().getBytes(StandardCharsets.UTF_8));
+			out.writeByte(0);
 		
-		long chromTreeOffset = out.getFilePointer();
-		writeChromTree(chrs, out, options.blockSize);
+			//computed while writing blocks
+			long totalSummaryOffset = out.getFilePointer();
+			SummaryElement totalSummary = new SummaryElement();
+			totalSummary.initValues();
+			totalSummary.write(out);
 		
-		long dataOffset = out.getFilePointer();
-		out.writeLong(sites.size());
-		List<Block> blocks = writeBlocks(sites, out, options);
+			boolean haveExtraIndex = options.extraIndexColumns != null && options.extraIndexColumns.length > 0;
+			long extensionHeaderOffset = out.getFilePointer();
+			int extHeaderSize = 64;
+			long extraIndexListOffset;
+			if(haveExtraIndex)
+			{
+				extraIndexListOffset = extensionHeaderOffset + extHeaderSize;
+				//out.seek(extensionHeaderOffset);
+				out.writeShort(extHeaderSize);
+				out.writeShort(options.extraIndexColumns.length);
+				out.writeLong(extraIndexListOffset);
+				Utils.writeNBytes(out, (byte)0, extHeaderSize-12);
+			
+				//reserve space for extra index headers
+				Utils.writeNBytes(out, (byte)0, options.extraIndexColumns.length*20);
+			}else
+			{
+				extraIndexListOffset = 0;
+				out.writeShort(extHeaderSize);
+				Utils.writeNBytes(out, (byte)0, extHeaderSize-2);
+			}
 		
-		long indexOffset = out.getFilePointer();
-		RTree rTree = RTreeIndexBuilder.buildRTree(blocks, options.blockSize);
-		RTreeIndexWriter.writeRTree(rTree, out);
+			long chromTreeOffset = out.getFilePointer();
+			writeChromTree(chrs, out, options.blockSize);
 		
-		//TOOD: write Zoom
+			long dataOffset = out.getFilePointer();
+			out.writeLong(siteCount);
 		
-		//write extra index
-		if(haveExtraIndex)
-		{
+			//Zoom levels summarize coverage by sites, initial reduction is ten times the average site length
+			ZoomWriter zoomWriter = siteCount > 0 && options.zoomLevels > 0
+					? new ZoomWriter((int)Math.min(Integer.MAX_VALUE, totalLength * 10 / siteCount), options)
+					: null;
+			ExtraIndexBuilder extraIndex = haveExtraIndex ? new ExtraIndexBuilder(options) : null;
+			long indexOffset;
+			List<ZoomLevel> zoomLevels = Collections.emptyList();
+			int maxUncompressedLength;
+			try
+			{
+				CoverageSweep coverage = new CoverageSweep((chrId, start, end, depth) -> {
+					totalSummary.addSummary(end - start, depth);
+					if(zoomWriter != null)
+						zoomWriter.addRun(chrId, start, end, depth);
+				});
+				List<Block> blocks = writeBlocks(first, sites, out, options, coverage, extraIndex);
+				coverage.finish();
+			
+				indexOffset = out.getFilePointer();
+				RTree rTree = RTreeIndexBuilder.buildRTree(blocks, options.blockSize);
+				RTreeIndexWriter.writeRTree(rTree, out);
+			
+				maxUncompressedLength = getMaxUncompressedBufLength(blocks);
+				if(zoomWriter != null)
+				{
+					zoomLevels = zoomWriter.write(out);
+					maxUncompressedLength = Math.max(maxUncompressedLength, zoomWriter.getMaxUncompressedLength());
+				}
 			
-			long[] fileOffsets = makeExtraIndex(sites, blocks, out, options);
-			out.seek(extraIndexListOffset);
-			for(int i = 0; i < options.extraIndexColumns.length; i++)
+				//write extra index
+				if(haveExtraIndex)
+				{
+					long[] fileOffsets = extraIndex.write(out, blocks);
+					long end = out.getFilePointer();
+					out.seek(extraIndexListOffset);
+					for(int i = 0; i < options.extraIndexColumns.length; i++)
+					{
+						int col = options.extraIndexColumns[i];
+						out.writeShort(0);//type
+						out.writeShort(1);//field count
+						out.writeLong(fileOffsets[i]);
+						out.writeInt(0);//reserved
+						out.writeShort(col);
+						out.writeShort(0);//reserved
+					}
+					out.seek(end);
+				}
+			}
+			finally
 			{
-				int col = options.extraIndexColumns[i];
-				out.writeShort(0);//type
-				out.writeShort(1);//field count
-				out.writeLong(fileOffsets[i]);
-				out.writeInt(0);//reserved
-				out.writeShort(col);
-				out.writeShort(0);//reserved
+				//delete temporary files
+				if(zoomWriter != null)
+					zoomWriter.close();
+				if(extraIndex != null)
+					extraIndex.close();
 			}
-		}
 		
+			//Write BigBed header
+			out.seek(0);
+			out.writeInt(Header.MAGIC_BIGBED);
+			out.writeShort(BigBedFile.VERSION);
+			out.writeShort(zoomLevels.size());
+			out.writeLong(chromTreeOffset);
+			out.writeLong(dataOffset);
+			out.writeLong(indexOffset);
+			out.writeShort(options.autoSql.columns.size());
+			out.writeShort(options.bedN);
+			out.writeLong(asOffset);
+			out.writeLong(totalSummaryOffset);
+			out.writeInt(options.compress ? maxUncompressedLength : 0);
+			out.writeLong(extensionHeaderOffset);
+			if(out.getFilePointer() != 64)
+				throw new AssertionError();
+			for(ZoomLevel zoom : zoomLevels)
+				zoom.write(out);
 		
-		//Write BigBed header
-		out.seek(0);
-		out.writeInt(Header.MAGIC_BIGBED);
-		out.writeShort(BigBedFile.VERSION);
-		out.writeShort(0);//Number of zoom levels
-		out.writeLong(chromTreeOffset);
-		out.writeLong(dataOffset);
-		out.writeLong(indexOffset);
-		out.writeShort(options.autoSql.columns.size());
-		out.writeShort(options.bedN);
-		out.writeLong(asOffset);
-		out.writeLong(totalSummaryOffset);
-		out.writeInt(options.compress ? getMaxUncompressedBufLength(blocks) : 0);
-		out.writeLong(extensionHeaderOffset);
-		if(out.getFilePointer() != 64)
-			throw new AssertionError();
-		
-		/* Write total summary. */
-		out.seek(totalSummaryOffset);
-		totalSummary.write(out);
-		
-	//	
-		out.close();
+			/* Write total summary. */
+			out.seek(totalSummaryOffset);
+			totalSummary.write(out);
+		}
 	}
 	
 
@@ -142,166 +207,334 @@ public class BigBedWriter {
 	}
 
 
+	//Key of extra index and ordinal number of the block having sites with this key
 	static class ExtraIndexEntry
 	{
-		byte[] key;
-		Block block;
+		final byte[] key;
+		final int blockIndex;
+		
+		ExtraIndexEntry(byte[] key, int blockIndex)
+		{
+			this.key = key;
+			this.blockIndex = blockIndex;
+		}
 	}
+	
+	//External sort of extra index entries by key, see ExternalSorter
+	private static class ExtraIndexSorter extends ExternalSorter<ExtraIndexEntry>
+	{
+		private static final int ENTRY_OVERHEAD = 48;//approximate memory taken by ExtraIndexEntry besides key bytes
+		
+		ExtraIndexSorter(long memoryLimit, File tempDir)
+		{
+			super((e1, e2) -> BPlusTree.cmp(e1.key, e2.key), memoryLimit, tempDir);
+		}
 
-	private static long[] makeExtraIndex(List<BedEntry> sites, List<Block> blocks, RandomAccessFile out, BigBedWriterOptions options) throws IOException {
-		int dataColumns = options.autoSql.columns.size()-3;
-		int indexCount = options.extraIndexColumns.length;
+		@Override
+		protected long memorySize(ExtraIndexEntry e)
+		{
+			return ENTRY_OVERHEAD + e.key.length;
+		}
+
+		//Run encoding: varint key length, key bytes, varint block index
+		@Override
+		protected void write(DataOutputStream out, ExtraIndexEntry e, ExtraIndexEntry prev) throws IOException
+		{
+			writeVarInt(out, e.key.length);
+			out.write(e.key);
+			writeVarInt(out, e.blockIndex);
+		}
 
-		List<ExtraIndexEntry>[] ess = new List[indexCount];
-		Set<String>[] keys = new Set[indexCount];
-		for(int i = 0; i < indexCount; i++)
+		@Override
+		protected ExtraIndexEntry read(DataInputStream in, ExtraIndexEntry prev) throws IOException
 		{
-			keys[i] = new HashSet<>();
-			ess[i] = new ArrayList<>();
+			byte[] key = new byte[readVarInt(in)];
+			in.readFully(key);
+			return new ExtraIndexEntry(key, readVarInt(in));
 		}
+	}
+	
+	//Bytes as ISO-8859-1 chars, so separator regex is matched without decoding site data to String
+	private static class ByteChars implements CharSequence
+	{
+		private byte[] data;
+		private int offset, length;
 		
-		for(Block block : blocks)
+		ByteChars(byte[] data, int offset, int length)
 		{
-			for(Set<String> s : keys)
-				s.clear();
-			
-			//Iterate over sites of current block and fill keys
-			for(int i = block.siteOffset; i < block.siteOffset + block.siteCount; i++)
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char)(data[offset + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new ByteChars(data, offset + start, end - start);
+		}
+		
+		@Override
+		public String toString() {
+			return new String(data, offset, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	//Collects distinct keys of extra index columns for each block,
+	//(key, block) pairs are sorted by ExtraIndexSorter within options.sortMemory and B+ trees are written from the merged runs
+	private static class ExtraIndexBuilder implements Closeable
+	{
+		private final BigBedWriterOptions options;
+		private final int dataColumns;
+		private final Set<ByteBuffer>[] keys;//keys of current block
+		private final ExtraIndexSorter[] sorters;
+		private final int[] keySizes;
+		private int blockCount;
+		
+		private final ByteChars chars = new ByteChars(null, 0, 0);
+		private final Matcher separator;
+		private final int[] columnStarts, columnEnds;//bounds of data columns of current site
+		
+		@SuppressWarnings("unchecked")
+		ExtraIndexBuilder(BigBedWriterOptions options)
+		{
+			this.options = options;
+			dataColumns = options.autoSql.columns.size()-3;
+			int indexCount = options.extraIndexColumns.length;
+			keys = new Set[indexCount];
+			sorters = new ExtraIndexSorter[indexCount];
+			keySizes = new int[indexCount];
+			for(int i = 0; i < indexCount; i++)
 			{
-				BedEntry site = sites.get(i);
-				String dataStr = new String(site.data, StandardCharsets.UTF_8);
-				String[] parts = dataStr.split(options.fieldSep);
-				if(parts.length != dataColumns)
-					throw new IllegalArgumentException("Expecting " + dataColumns + " columns in site data, but got " + parts.length + " in: " + dataStr);
-				for(int j = 0; j < options.extraIndexColumns.length; j++)
-				{
-					int col = options.extraIndexColumns[j];
-					String key = parts[j];
-					keys[j].add(key);
-				}
+				keys[i] = new HashSet<>();
+				sorters[i] = new ExtraIndexSorter(options.sortMemory / indexCount, options.tempDir);
 			}
-			
-			//make entries for current block
-			for(int i = 0; i < indexCount; i++)
+			separator = Pattern.compile(options.fieldSep).matcher(chars);
+			columnStarts = new int[dataColumns];
+			columnEnds = new int[dataColumns];
+		}
+		
+		void addSite(BedEntry site)
+		{
+			byte[] data = site.data == null ? new byte[0] : site.data;
+			int columns = findColumns(data);
+			if(columns != dataColumns)
+				throw new IllegalArgumentException("Expecting " + dataColumns + " columns in site data, but got " + columns
+						+ " in: " + new String(data, StandardCharsets.UTF_8));
+			for(int j = 0; j < options.extraIndexColumns.length; j++)
 			{
-				for(String key : keys[i])
-				{
-					ExtraIndexEntry e = new ExtraIndexEntry();
-					e.key = key.getBytes(StandardCharsets.UTF_8);
-					e.block = block;
-					ess[i].add(e);	
-				}
+				int col = options.extraIndexColumns[j] - 3;
+				keys[j].add(ByteBuffer.wrap(Arrays.copyOfRange(data, columnStarts[col], columnEnds[col])));
 			}
 		}
 		
+		//Fills bounds of data columns the same way as String.split(options.fieldSep) splits the data, returns the number of columns
+		private int findColumns(byte[] data)
+		{
+			chars.data = data;
+			chars.length = data.length;
+			separator.reset(chars);
+			int count = 0, lastNonEmpty = -1, columnStart = 0;
+			boolean found = false;
+			while(separator.find())
+			{
+				//zero-width match at the beginning does not produce leading empty column
+				if(separator.end() == 0)
+					continue;
+				found = true;
+				lastNonEmpty = addColumn(count++, columnStart, separator.start(), lastNonEmpty);
+				columnStart = separator.end();
+			}
+			if(!found)
+				return addColumn(0, 0, data.length, 0) + 1;
+			lastNonEmpty = addColumn(count, columnStart, data.length, lastNonEmpty);
+			//trailing empty columns are dropped
+			return lastNonEmpty + 1;
+		}
 		
-		long[] treeOffset = new long[indexCount];
-		for(int j = 0; j < indexCount; j++)
+		//returns index of the last non empty column
+		private int addColumn(int index, int start, int end, int lastNonEmpty)
 		{
-			List<ExtraIndexEntry> es = ess[j];
-			Comparator<ExtraIndexEntry> cmp = new Comparator<ExtraIndexEntry>() {
-				public int compare(ExtraIndexEntry e1, ExtraIndexEntry e2) {
-					byte[] k1 = e1.key;
-					byte[] k2 = e2.key;
-					return BPlusTree.cmp(k1,k2);
+			if(index < dataColumns)
+			{
+				columnStarts[index] = start;
+				columnEnds[index] = end;
+			}
+			return end > start ? index : lastNonEmpty;
+		}
+		
+		//make entries for finished block
+		void finishBlock(Block block) throws IOException
+		{
+			for(int i = 0; i < keys.length; i++)
+			{
+				for(ByteBuffer key : keys[i])
+				{
+					sorters[i].add(new ExtraIndexEntry(key.array(), blockCount));
+					keySizes[i] = Math.max(keySizes[i], key.capacity());
 				}
-			};
-			es.sort(cmp);
-			
-			int keySize = 0;
-			for(int i = 0; i < es.size(); i++) {
-				byte[] key = es.get(i).key;
-				if(key.length > keySize)
-					keySize = key.length;
+				keys[i].clear();
 			}
-			int valSize = 8+8;//offset,size
-			
-			byte[] data = new byte[es.size()*(keySize+valSize)];
-			ByteBuffer buf = ByteBuffer.wrap(data);
-			buf.order(ByteOrder.BIG_ENDIAN);
-			for(int i = 0; i < es.size(); i++)
+			blockCount++;
+		}
+		
+		//@blocks are all blocks in the order they were finished
+		long[] write(BufferedFileOutput out, List<Block> blocks) throws IOException
+		{
+			long[] treeOffset = new long[sorters.length];
+			for(int j = 0; j < sorters.length; j++)
 			{
-				ExtraIndexEntry e = es.get(i);
-				buf.put(e.key);
-				buf.position(buf.position() + (keySize - e.key.length));
-				buf.putLong(e.block.offsetInFile);
-				buf.putLong(e.block.compressedLength);
+				int keySize = keySizes[j];
+				int valSize = 8+8;//offset,size
+				Iterator<ExtraIndexEntry> it = sorters[j].sorted();
+				treeOffset[j] = out.getFilePointer();
+				BPlusTree.write(out, sorters[j].getCount(), item -> {
+					ExtraIndexEntry e = it.next();
+					Block block = blocks.get(e.blockIndex);
+					ByteBuffer buf = ByteBuffer.wrap(item).order(ByteOrder.BIG_ENDIAN);
+					buf.put(e.key);
+					Arrays.fill(item, e.key.length, keySize, (byte)0);
+					buf.position(keySize);
+					buf.putLong(block.offsetInFile);
+					buf.putLong(block.compressedLength);
+				}, keySize, valSize, options.blockSize);
 			}
-			
-			treeOffset[j] = out.getFilePointer();
-			BPlusTree.write(out, data, keySize, valSize, options.blockSize);	
+			return treeOffset;
 		}
 		
-		return treeOffset;
+		//Deletes temporary files
+		@Override
+		public void close() throws IOException
+		{
+			for(ExtraIndexSorter sorter : sorters)
+				sorter.close();
+		}
 	}
 	
-	private static List<Block> writeBlocks(List<BedEntry> sites, RandomAccessFile out, BigBedWriterOptions options) throws IOException {
-		if(sites.size() == 0)
-			return Collections.emptyList();
+	//Runs of constant positive coverage by sorted sites
+	static class CoverageSweep
+	{
+		interface RunConsumer
+		{
+			void accept(int chrId, int start, int end, int coverage) throws IOException;
+		}
 		
-		List<Block> blocks = new ArrayList<>();
+		private final RunConsumer consumer;
+		private final PriorityQueue<Integer> ends = new PriorityQueue<>();//ends of the sites covering current position
+		private int chrId = -1;
+		private int pos;
 		
-		ByteArrayOutputStream blockOut = new ByteArrayOutputStream();
-		DataOutputStream blockDataOut = new DataOutputStream(blockOut);
-		Block curBlock = null;
+		CoverageSweep(RunConsumer consumer)
+		{
+			this.consumer = consumer;
+		}
 		
+		void add(BedEntry e) throws IOException
+		{
+			flush(e.chrId != chrId, e.start);
+			if(!ends.isEmpty() && e.start > pos)
+				consumer.accept(chrId, pos, e.start, ends.size());
+			chrId = e.chrId;
+			pos = e.start;
+			ends.add(e.end);
+		}
+		
+		void finish() throws IOException
+		{
+			flush(true, 0);
+		}
 		
-		for(int i = 0; i < sites.size(); i++)
+		//pass runs up to the ends not exceeding @upTo, or up to all ends if @all
+		private void flush(boolean all, int upTo) throws IOException
 		{
-			BedEntry e = sites.get(i);
-			if(curBlock == null || curBlock.chrId != e.chrId || curBlock.siteCount >= options.itemsPerSlot)
+			while(!ends.isEmpty() && (all || ends.peek() <= upTo))
 			{
-				//finish curBlock
-				if(curBlock != null)
-					finishBlock(out, options.compress, blockOut, curBlock);
-				
-				curBlock = new Block();
-				curBlock.offsetInFile = out.getFilePointer();
-				curBlock.chrId = e.chrId;
-				curBlock.chrStart = e.start;
-				curBlock.chrEnd = e.end;
-				curBlock.siteOffset = i;
-				//curBlock.compressedLength and curBlock.uncompressedLength will be filled in finishBlock
-				blocks.add(curBlock);
-			}else
+				int coverage = ends.size();
+				int end = ends.poll();
+				if(end > pos)
+				{
+					consumer.accept(chrId, pos, end, coverage);
+					pos = end;
+				}
+			}
+		}
+	}
+	
+	//Writes blocks of @first followed by the rest of sorted @sites
+	private static List<Block> writeBlocks(BedEntry first, Iterator<BedEntry> sites, BufferedFileOutput out, BigBedWriterOptions options,
+			CoverageSweep coverage, ExtraIndexBuilder extraIndex) throws IOException {
+		if(first == null)
+			return Collections.emptyList();
+		
+		List<Block> blocks = new ArrayList<>();
+		
+		try(BlockWriter blockWriter = new BlockWriter(out, options))
+		{
+			DataOutputStream blockDataOut = blockWriter.data();
+			Block curBlock = null;
+		
+			int i = 0;
+			for(BedEntry e = first; e != null; e = sites.hasNext() ? sites.next() : null, i++)
 			{
-				if(curBlock.chrEnd < e.end)
+				if(curBlock == null || curBlock.chrId != e.chrId || curBlock.siteCount >= options.itemsPerSlot)
+				{
+					//finish curBlock
+					if(curBlock != null)
+						finishSitesBlock(blockWriter, curBlock, extraIndex);
+				
+					curBlock = new Block();
+					curBlock.chrId = e.chrId;
+					curBlock.chrStart = e.start;
 					curBlock.chrEnd = e.end;
-				//No need to update curBLock.chrStart since input is sorted
-			}
+					curBlock.siteOffset = i;
+					//curBlock.offsetInFile, compressedLength and uncompressedLength will be filled by blockWriter
+					blocks.add(curBlock);
+				}else
+				{
+					if(curBlock.chrEnd < e.end)
+						curBlock.chrEnd = e.end;
+					//No need to update curBLock.chrStart since input is sorted
+				}
 			
-			blockDataOut.writeInt(e.chrId);
-			blockDataOut.writeInt(e.start);
-			blockDataOut.writeInt(e.end);
-			//TODO: check that e.data have no zero bytes
-			if(e.data != null)
-				blockDataOut.write(e.data);
-			blockDataOut.write(0);
-			curBlock.siteCount++;
-		}
+				blockDataOut.writeInt(e.chrId);
+				blockDataOut.writeInt(e.start);
+				blockDataOut.writeInt(e.end);
+				//TODO: check that e.data have no zero bytes
+				if(e.data != null)
+					blockDataOut.write(e.data);
+				blockDataOut.write(0);
+				curBlock.siteCount++;
+			
+				coverage.add(e);
+				if(extraIndex != null)
+					extraIndex.addSite(e);
+			}
 		
-		//finish last block
-		if(curBlock != null)
-			finishBlock(out, options.compress, blockOut, curBlock);
+			//finish last block
+			if(curBlock != null)
+				finishSitesBlock(blockWriter, curBlock, extraIndex);
+			blockWriter.flush();
+		}
 		
 		return blocks;
 	}
 
-
-
-	private static void finishBlock(RandomAccessFile out, boolean compress, ByteArrayOutputStream blockOut,
-			Block curBlock) throws IOException {
-		byte[] blockData = blockOut.toByteArray();
-		blockOut.reset();
-		curBlock.uncompressedLength = blockData.length;
-		if(compress)
-			blockData = Utils.compress(blockData);
-		curBlock.compressedLength = blockData.length;					
-		out.write(blockData);
+	private static void finishSitesBlock(BlockWriter blockWriter, Block curBlock, ExtraIndexBuilder extraIndex) throws IOException {
+		blockWriter.finishBlock(curBlock);
+		if(extraIndex != null)
+			extraIndex.finishBlock(curBlock);
 	}
 
 
-	private static void writeChromTree(List<ChromInfo> chrs, RandomAccessFile out, int blockSize) throws IOException {
+	static void writeChromTree(List<ChromInfo> chrs, BufferedFileOutput out, int blockSize) throws IOException {
 		int maxChromNameSize = 0;
 		for(ChromInfo chr : chrs)
 			if(chr.name.length() > maxChromNameSize)
@@ -336,7 +569,7 @@ public class BigBedWriter {
 		byte[] data = new byte[chrs.size() * itemSize];
 		ByteBuffer buf = ByteBuffer.wrap(data);
 		//here we should write in the same byteOrder as @out
-		//RandomAccessFile is BigEndian
+		//BufferedFileOutput is BigEndian
 		buf.order(ByteOrder.BIG_ENDIAN);//this is how it is done in ucsc genome browser
 		for(int i = 0; i < chrs.size();i++)
 		{
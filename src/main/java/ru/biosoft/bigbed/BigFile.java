@@ -1,16 +1,40 @@
 package ru.biosoft.bigbed;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+//Common part of BigBed and BigWig files
+//After read() all queries use only positional reads of DataSource,
+//so single instance can be safely used from multiple threads concurrently
 public abstract class BigFile<T> implements AutoCloseable {
 	static final int VERSION = 4;
 	
 	String source;
 	DataSource dataSource;
+	BlockCache blockCache;
+	boolean pinRTree;
+	long pinRTreeLeavesMaxSize;
+	Executor queryExecutor;
 	Header header;
 	
 	public static final int MAX_ZOOM_LEVELS = 10;
@@ -20,13 +44,23 @@ public abstract class BigFile<T> implements AutoCloseable {
 	SummaryElement totalSummary;
 	
 	BPlusTree bPlusTree; 
-	RTreeIndex  rTree;
+	private volatile ChromDictionary chromDictionary;
+	volatile RTreeIndex  rTree;
 	
 	
 	BigFile(String source)
+	{
+		this(source, new BigFileOptions());
+	}
+	
+	BigFile(String source, BigFileOptions options)
 	{
 		this.source = source;
-		dataSource = new RAFDataSource();
+		dataSource = options.createDataSource(source);
+		blockCache = options.blockCache;
+		pinRTree = options.pinRTree;
+		pinRTreeLeavesMaxSize = options.pinRTreeLeavesMaxSize;
+		queryExecutor = options.queryExecutor;
 	}
 	
 	void read() throws IOException, ParseException
@@ -71,97 +105,404 @@ public abstract class BigFile<T> implements AutoCloseable {
 	{
 		if(rTree == null)
 		{
-			rTree = new RTreeIndex();
-			rTree.read(dataSource, header.unzoomedIndexOffset);
+			synchronized(this)
+			{
+				if(rTree == null)
+				{
+					RTreeIndex index = new RTreeIndex();
+					index.read(dataSource, header.unzoomedIndexOffset);
+					if(pinRTree)
+						index.pin(dataSource, index.itemCount * RTreeIndex.LEAF_ITEM_SIZE <= pinRTreeLeavesMaxSize);
+					rTree = index;
+				}
+			}
+		}
+	}
+	
+	public List<ZoomLevel> getZoomLevels()
+	{
+		return Collections.unmodifiableList(zoomLevels);
+	}
+	
+	//Zoom level with the largest reductionLevel not exceeding @desiredReduction, null if there is no such level
+	public ZoomLevel getBestZoomLevel(int desiredReduction)
+	{
+		ZoomLevel best = null;
+		for(ZoomLevel zoom : zoomLevels)
+			if(zoom.reductionLevel <= desiredReduction && (best == null || zoom.reductionLevel > best.reductionLevel))
+				best = zoom;
+		return best;
+	}
+	
+	RTreeIndex getZoomIndex(ZoomLevel zoom) throws IOException
+	{
+		if(zoom.rTree == null)
+		{
+			synchronized(zoom)
+			{
+				if(zoom.rTree == null)
+				{
+					RTreeIndex index = new RTreeIndex();
+					index.read(dataSource, zoom.indexOffset);
+					if(pinRTree)
+						index.pin(dataSource, index.itemCount * RTreeIndex.LEAF_ITEM_SIZE <= pinRTreeLeavesMaxSize);
+					zoom.rTree = index;
+				}
+			}
 		}
+		return zoom.rTree;
+	}
+	
+	//Visit zoom records overlapping the region, the record passed to visitor is reused
+	//returns false if visitor stopped
+	public boolean queryZoomRecords(ZoomLevel zoom, int chromId, int start, int end, RecordVisitor<ZoomRecord> visitor) throws IOException
+	{
+		RTreeIndex index = getZoomIndex(zoom);
+		List<OffsetSize> blockList = new ArrayList<>();
+		index.findOverlappingBlocks(chromId, start, end, dataSource, blockList::add);
+		ZoomRecord rec = new ZoomRecord();
+		return readBlocks(blockList, (block, bb) -> {
+			while(bb.remaining() >= ZoomRecord.SIZE)
+			{
+				rec.read(bb);
+				//records are sorted by (chromId, start)
+				if(rec.chromId > chromId || (rec.chromId == chromId && rec.start >= end))
+					return true;
+				if(rec.chromId == chromId && rec.end > start)
+					if(!visitor.visit(rec))
+						return false;
+			}
+			return true;
+		});
 	}
 	
 	protected abstract boolean parseBlock(int chromId, int start, int end, int maxItems, ByteBuffer block, List<T> resultList);
 	
+	//Pass records of the block to the lists of overlapping regions, stops when router.isDone()
+	abstract void routeBlock(ByteBuffer block, RegionRouter<T> router);
+	
 	
 	public List<T> queryIntervals(String chrom, int start, int end, int maxItems) throws IOException {
 		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo == null)
+			return new ArrayList<>();
 		return queryIntervals(chrInfo.id, start, end, maxItems);
 	}
 	
 
 	public List<T> queryIntervals(int chromId, int start, int end, int maxItems) throws IOException {
-
+		List<OffsetSize> blockList = findBlocks(chromId, start, end);
+		if(queryExecutor != null && blockList.size() >= PIPELINE_MIN_BLOCKS)
+			return queryIntervalsPipelined(chromId, start, end, maxItems, blockList);
 		List<T> result = new ArrayList<>();
+		readBlocks(blockList, (block, bb) -> parseBlock(chromId, start, end, maxItems, bb, result));
+		return result;
+	}
+	
+	//Blocks that may contain records overlapping given region
+	List<OffsetSize> findBlocks(int chromId, int start, int end) throws IOException {
 		initRTree();
 		
-		
 		int paddedStart = (start > 0) ? start-1 : start;
 		int paddedEnd = end+1;
 		
 		List<OffsetSize> blockList = new ArrayList<>();
 		rTree.findOverlappingBlocks(chromId, paddedStart, paddedEnd, dataSource, blockList::add);
+		return blockList;
+	}
+	
+	//Read all blocks that may contain records overlapping given region
+	boolean readBlocks(int chromId, int start, int end, BlockConsumer consumer) throws IOException {
+		return readBlocks(findBlocks(chromId, start, end), consumer);
+	}
+	
+	//Queries with fewer blocks are not worth pipelining
+	static final int PIPELINE_MIN_BLOCKS = 4;
+	//Maximal number of blocks being uncompressed and parsed at once by pipelined query
+	static final int PIPELINE_WINDOW = 64;
+	
+	//Blocks are read on the calling thread, while previously read blocks are uncompressed and parsed on queryExecutor
+	//Parsed blocks are appended to the result in file order
+	private List<T> queryIntervalsPipelined(int chromId, int start, int end, int maxItems, List<OffsetSize> blockList) throws IOException {
+		List<T> result = new ArrayList<>();
+		BlockReader reader = new BlockReader(this, blockList);
+		Deque<Future<List<T>>> pending = new ArrayDeque<>();
+		AtomicBoolean stopped = new AtomicBoolean();
+		try {
+			while(reader.hasNext())
+			{
+				//collect finished blocks to stop reading as soon as maxItems is reached
+				while(!pending.isEmpty() && (pending.size() >= PIPELINE_WINDOW || pending.peek().isDone()))
+					if(!appendItems(result, getResult(pending.poll()), maxItems))
+						return result;
+				BlockReader.RawBlock raw = reader.nextRaw();
+				FutureTask<List<T>> task = new FutureTask<>(() -> {
+					//result is already complete, skip blocks queued before it
+					if(stopped.get())
+						return Collections.<T>emptyList();
+					List<T> items = new ArrayList<>();
+					parseBlock(chromId, start, end, maxItems, reader.uncompress(raw, raw.cached ? null : reader.workerUncompressBuffer()), items);
+					return items;
+				});
+				queryExecutor.execute(task);
+				pending.add(task);
+			}
+			while(!pending.isEmpty())
+				if(!appendItems(result, getResult(pending.poll()), maxItems))
+					break;
+			return result;
+		} finally {
+			stopped.set(true);
+			for(Future<List<T>> f : pending)
+				f.cancel(false);
+		}
+	}
+	
+	//Append @items to @result keeping at most @maxItems (if positive), returns false if maxItems is reached
+	private static <T> boolean appendItems(List<T> result, List<T> items, int maxItems) {
+		if(maxItems > 0 && result.size() + items.size() >= maxItems)
+		{
+			result.addAll(items.subList(0, maxItems - result.size()));
+			return false;
+		}
+		result.addAll(items);
+		return true;
+	}
+	
+	//Wait for the task and rethrow its exception as is
+	static <R> R getResult(Future<R> future) throws IOException {
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException)cause).getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	//Number of consecutive blocks parsed by one task of parallelScan
+	static final int SCAN_BLOCKS_PER_TASK = 32;
+	
+	//Parse all records of the file in parallel on ForkJoinPool.commonPool(), see parallelScan(Executor, int, boolean, Consumer)
+	public void parallelScan(boolean ordered, Consumer<List<T>> consumer) throws IOException {
+		parallelScan(ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism(), ordered, consumer);
+	}
+	
+	//Parse all records of the file in parallel
+	//The file is split into runs of consecutive R-tree leaves, each run is read, uncompressed and parsed by separate task on @executor
+	//Records of each run are passed to @consumer on the calling thread, so consumer need not be thread safe.
+	//If @ordered is set runs are delivered in file (genomic) order, otherwise in order of completion.
+	//At most 2*@parallelism runs are in flight at once.
+	//If consumer throws, remaining runs are cancelled without interrupting workers (interrupt would close FileChannel of the file),
+	//running tasks stop before their next block
+	public void parallelScan(Executor executor, int parallelism, boolean ordered, Consumer<List<T>> consumer) throws IOException {
+		initRTree();
+		List<RTreeIndex.LeafNode> leaves = new ArrayList<>();
+		rTree.traverseAllLeafs(dataSource, leaves::add);
 		
+		int window = Math.max(1, parallelism) * 2;
+		ExecutorCompletionService<List<T>> completionService = ordered ? null : new ExecutorCompletionService<>(executor);
+		Deque<Future<List<T>>> pending = new ArrayDeque<>();
+		AtomicBoolean stopped = new AtomicBoolean();
+		try {
+			for(int from = 0; from < leaves.size(); from += SCAN_BLOCKS_PER_TASK)
+			{
+				if(pending.size() >= window)
+					consumer.accept(takeScanResult(pending, completionService));
+				List<RTreeIndex.LeafNode> part = leaves.subList(from, Math.min(from + SCAN_BLOCKS_PER_TASK, leaves.size()));
+				Callable<List<T>> task = () -> scanLeaves(part, stopped);
+				if(ordered)
+				{
+					FutureTask<List<T>> future = new FutureTask<>(task);
+					executor.execute(future);
+					pending.add(future);
+				}
+				else
+					pending.add(completionService.submit(task));
+			}
+			while(!pending.isEmpty())
+				consumer.accept(takeScanResult(pending, completionService));
+		} finally {
+			stopped.set(true);
+			for(Future<List<T>> f : pending)
+				f.cancel(false);
+		}
+	}
+	
+	//Wait for the next result of parallelScan: the oldest task when @completionService is null, otherwise the first completed
+	private List<T> takeScanResult(Deque<Future<List<T>>> pending, ExecutorCompletionService<List<T>> completionService) throws IOException {
+		Future<List<T>> future;
+		if(completionService == null)
+			future = pending.peek();
+		else
+		{
+			try {
+				future = completionService.take();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		List<T> res = getResult(future);
+		pending.remove(future);
+		return res;
+	}
+	
+	//Parse all records of consecutive leaves, returns partial result once @stopped is set
+	private List<T> scanLeaves(List<RTreeIndex.LeafNode> leaves, AtomicBoolean stopped) throws IOException {
+		List<OffsetSize> blockList = new ArrayList<>(leaves.size());
+		for(RTreeIndex.LeafNode leaf : leaves)
+			blockList.add(new OffsetSize(leaf.offset, leaf.size));
+		List<T> result = new ArrayList<>();
+		BlockReader reader = new BlockReader(this, blockList);
+		for(int i = 0; !stopped.get() && reader.hasNext(); i++)
+		{
+			ByteBuffer bb = reader.next();
+			RTreeIndex.LeafNode leaf = leaves.get(i);
+			//records in block are sorted by chromosome, so parsing chromosomes one by one keeps the order
+			for(int chromId = leaf.startChromIdx; chromId <= leaf.endChromIdx; chromId++)
+				parseBlock(chromId, 0, Integer.MAX_VALUE, 0, bb.duplicate().order(bb.order()), result);
+		}
+		return result;
+	}
+	
+	//Query many regions at once, results are returned in the order of @regions
+	//The R-tree is swept once for all regions and every block is read and uncompressed once even if shared by several regions
+	//@maxItems limits the number of records per region
+	public List<List<T>> queryIntervals(List<Region> regions, int maxItems) throws IOException {
+		initRTree();
+		List<List<T>> results = new ArrayList<>(regions.size());
+		List<Integer> order = new ArrayList<>(regions.size());
+		int[] chromIds = new int[regions.size()];
+		for(int i = 0; i < regions.size(); i++)
+		{
+			results.add(new ArrayList<>());
+			ChromInfo chrInfo = getChromInfo(regions.get(i).chrom);
+			if(chrInfo == null)
+				continue;
+			chromIds[i] = chrInfo.id;
+			order.add(i);
+		}
+		order.sort((a, b) -> {
+			int res = Integer.compare(chromIds[a], chromIds[b]);
+			return res != 0 ? res : Integer.compare(regions.get(a).start, regions.get(b).start);
+		});
 		
-		byte[] uncompressedBuf = null;
-		if(header.uncompressBufSize > 0)
-			uncompressedBuf = new byte[header.uncompressBufSize];
+		int n = order.size();
+		int[] sortedChromIds = new int[n], sortedStarts = new int[n], sortedEnds = new int[n];
+		int[] paddedStarts = new int[n], paddedEnds = new int[n];
+		List<List<T>> sortedResults = new ArrayList<>(n);
+		for(int i = 0; i < n; i++)
+		{
+			Region r = regions.get(order.get(i));
+			sortedChromIds[i] = chromIds[order.get(i)];
+			sortedStarts[i] = r.start;
+			sortedEnds[i] = r.end;
+			paddedStarts[i] = (r.start > 0) ? r.start-1 : r.start;
+			paddedEnds[i] = r.end+1;
+			sortedResults.add(results.get(order.get(i)));
+		}
 		
-		for (int iblock=0; iblock < blockList.size(); )
-	    {
-			/* Find contiguous blocks and read them into mergedBuf. */
-			int nBlocks = findContiguousBlocks(blockList, iblock);
-			OffsetSize firstBlock = blockList.get(iblock);
-			long mergedOffset = firstBlock.offset;
-			OffsetSize lastBlock = blockList.get(iblock+nBlocks-1);
-	        long mergedSize = lastBlock.offset + lastBlock.size - mergedOffset;
-	        if(mergedSize > Integer.MAX_VALUE)
-	        	throw new ParseException("Merged size too big: " + mergedSize);
-	    	dataSource.seek(mergedOffset);
-	    	byte[] mergedBuf = new byte[(int)mergedSize];
-	    	dataSource.readFully(mergedBuf, 0, (int)mergedSize);
-
-	    	for(int i = 0; i < nBlocks; i++)
-	    	{
-	    		byte[] buf;
-	    		int bufStart, bufLength;
-
-	    		OffsetSize curBlock = blockList.get(iblock+i);
-	    		
-	    		buf = mergedBuf;
-    			bufStart = (int)(curBlock.offset-firstBlock.offset);
-    			bufLength = (int)curBlock.size;
-    			
-	    		if(uncompressedBuf != null)
-	    		{
-	    			bufLength = Utils.uncompress(buf, bufStart, bufLength, uncompressedBuf);
-	    			buf = uncompressedBuf;
-	    			bufStart = 0;
-	    		}
-	    		
-	    		ByteBuffer bb = ByteBuffer.wrap(buf, bufStart, bufLength);
-	    		bb.order(dataSource.order());
-	    		
-	    		parseBlock(chromId, start, end, maxItems, bb, result);
-	    		
-	    	}
-	    	iblock += nBlocks;
-	    
-	    }
+		List<OffsetSize> blockList = new ArrayList<>();
+		List<int[]> blockRegions = new ArrayList<>();
+		rTree.findOverlappingBlocks(sortedChromIds, paddedStarts, paddedEnds, dataSource, (block, sub) -> {
+			blockList.add(block);
+			blockRegions.add(sub);
+		});
 		
-		return result;
+		//each block is parsed once, its records are routed to all overlapping regions
+		RegionRouter<T> router = new RegionRouter<>(sortedChromIds, sortedStarts, sortedEnds, sortedResults, maxItems);
+		BlockReader reader = new BlockReader(this, blockList);
+		for(int i = 0; reader.hasNext(); i++)
+		{
+			ByteBuffer bb = reader.next();
+			router.startBlock(blockRegions.get(i));
+			routeBlock(bb, router);
+		}
+		return results;
+	}
+	
+	interface BlockConsumer {
+		//@data contains uncompressed block, return false to stop reading
+		boolean accept(OffsetSize block, ByteBuffer data) throws IOException;
+	}
+	
+	//Read blocks sorted by offset and pass them uncompressed to consumer, see BlockReader
+	//returns false if consumer stopped reading
+	boolean readBlocks(List<OffsetSize> blockList, BlockConsumer consumer) throws IOException {
+		BlockReader reader = new BlockReader(this, blockList);
+		while(reader.hasNext())
+		{
+			ByteBuffer bb = reader.next();
+			if(!consumer.accept(reader.current(), bb))
+				return false;
+		}
+		return true;
+	}
+	
+	//Read and uncompress single block
+	ByteBuffer readBlock(OffsetSize block) throws IOException {
+		return new BlockReader(this, Collections.singletonList(block)).next();
+	}
+	
+	//Lazily evaluated query, blocks are read and parsed as the iterator advances
+	//Reading stops after @maxItems records (if maxItems > 0), the iterator should be closed after use
+	public IntervalIterator<T> iterateIntervals(String chrom, int start, int end, int maxItems) throws IOException {
+		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo == null)
+			return new IntervalIterator<>(this, -1, start, end, maxItems, Collections.emptyList());
+		return iterateIntervals(chrInfo.id, start, end, maxItems);
 	}
 	
-	//Return number of contiguous blocks starting at iblock
-	private int findContiguousBlocks(List<OffsetSize> blockList, int iblock) {
-		for(int i = iblock + 1; i < blockList.size(); i++)
-			if(blockList.get(i).offset != blockList.get(i-1).offset + blockList.get(i-1).size)
-				return i-iblock;
-		return blockList.size() - iblock;
+	public IntervalIterator<T> iterateIntervals(int chromId, int start, int end, int maxItems) throws IOException {
+		return new IntervalIterator<>(this, chromId, start, end, maxItems, findBlocks(chromId, start, end));
+	}
+	
+	//Same as iterateIntervals, but as Stream, closing the stream closes the iterator
+	public Stream<T> streamIntervals(String chrom, int start, int end, int maxItems) throws IOException {
+		IntervalIterator<T> it = iterateIntervals(chrom, start, end, maxItems);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(it::close);
 	}
 
 	
+	//Chromosome tree is loaded into memory on first use
+	public ChromDictionary getChromDictionary() throws IOException {
+		if(chromDictionary == null)
+		{
+			synchronized(this)
+			{
+				if(chromDictionary == null)
+					chromDictionary = ChromDictionary.load(this);
+			}
+		}
+		return chromDictionary;
+	}
+	
+	//returns null if there is no such chromosome in file
 	public ChromInfo getChromInfo(String chrom) throws IOException {
-		byte[] key = chrom.getBytes();
-		byte[] value = new byte[bPlusTree.valSize];
-		bPlusTree.find(key, value);
-		ChromInfo res = parseChromInfo(chrom, value);
-		return res;
+		return getChromDictionary().get(chrom);
+	}
+	
+	//returns null if there is no such chromosome in file
+	public ChromInfo getChromInfo(int chromId) throws IOException {
+		return getChromDictionary().get(chromId);
+	}
+	
+	//returns null if there is no such chromosome in file
+	public String getChromName(int chromId) throws IOException {
+		ChromInfo res = getChromInfo(chromId);
+		return res == null ? null : res.name;
 	}
 
 	public ChromInfo parseChromInfo(String chrom, byte[] value) {
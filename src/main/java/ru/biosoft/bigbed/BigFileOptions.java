@@ -0,0 +1,32 @@
+package ru.biosoft.bigbed;
+
+import java.util.concurrent.Executor;
+
+public class BigFileOptions {
+	public boolean memoryMapped = false;//read file through FileChannel.map instead of RandomAccessFile, recommended for large local files
+	public int pageSize = 0;//when positive, RandomAccessFile is read through BufferedDataSource with this page size (e.g. BufferedDataSource.DEFAULT_PAGE_SIZE)
+	
+	public DataSource dataSource;//custom DataSource, overrides memoryMapped when set; should not be opened yet
+	
+	public boolean pinRTree = false;//keep non-leaf levels of R-tree index in memory after the first query, so queries read only leaf nodes
+	public long pinRTreeLeavesMaxSize = 1 << 20;//when pinRTree is set, keep also leaf level in memory if it takes less than this number of bytes
+	
+	public BlockCache blockCache;//cache of uncompressed blocks, may be shared between files; null to disable caching
+	public int blockCountCacheSize = 1 << 16;//BigBedFile.countIntervals remembers record counts of this many blocks (least recently used are dropped); 0 to disable
+	
+	public Executor queryExecutor;//when set, large queries uncompress and parse blocks on this executor while the next blocks are read; null to do everything on the calling thread
+	
+	//sources starting with http:// or https:// are read with HttpDataSource
+	DataSource createDataSource(String source)
+	{
+		if(dataSource != null)
+			return dataSource;
+		if(HttpDataSource.isHttp(source))
+			return new HttpDataSource();
+		if(memoryMapped)
+			return new MappedDataSource();
+		if(pageSize > 0)
+			return new BufferedDataSource(new RAFDataSource(), pageSize);
+		return new RAFDataSource();
+	}
+}
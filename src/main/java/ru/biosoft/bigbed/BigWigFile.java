@@ -2,8 +2,10 @@ package ru.biosoft.bigbed;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
+//BigWig file reader, queries are thread safe once the file is read
 public class BigWigFile extends BigFile<WigEntry> {
 	
 	public static BigWigFile read(String source) throws ParseException, IOException
@@ -13,19 +15,62 @@ public class BigWigFile extends BigFile<WigEntry> {
 		return res;
 	}
 	
+	public static BigWigFile read(String source, BigFileOptions options) throws ParseException, IOException
+	{
+		BigWigFile res = new BigWigFile(source, options);
+		res.read();
+		return res;
+	}
+	
 	BigWigFile(String source)
 	{
 		super(source);
 	}
 	
+	BigWigFile(String source, BigFileOptions options)
+	{
+		super(source, options);
+	}
+	
 
 	@Override
 	protected boolean parseBlock(int chromId, int qStart, int qEnd, int maxItems, ByteBuffer block, List<WigEntry> resultList) {
+		return visitBlock(chromId, qStart, qEnd, block, new WigRecord(), rec -> {
+			resultList.add(rec.toWigEntry());
+			return maxItems <= 0 || resultList.size() < maxItems;
+		});
+	}
+	
+	@Override
+	void routeBlock(ByteBuffer block, RegionRouter<WigEntry> router) {
+		//block is a single section, its header starts with chromId
+		int chromId = block.getInt(block.position());
+		visitBlock(chromId, 0, Integer.MAX_VALUE, block, new WigRecord(), rec -> {
+			int n = router.match(rec.chrId, rec.start, rec.end);
+			for(int i = 0; i < n; i++)
+				router.target(i).add(rec.toWigEntry());
+			return !router.isDone();
+		});
+	}
+	
+	//Pass values overlapping the region to visitor reusing @rec, returns false if visitor stopped
+	//Items of section are sorted by start, so parsing stops at the first item starting after the region
+	private boolean visitBlock(int chromId, int qStart, int qEnd, ByteBuffer block, WigRecord rec, RecordVisitor<WigRecord> visitor) {
 		BigWigSectionHeader head = new BigWigSectionHeader();
 		head.read(block);
-		int s = head.start-head.itemStep;
+		if(head.chromId != chromId)
+			return true;
+		int first = 0;
+		if(head.type == BigWigSectionHeader.Type.FIXED_STEP && head.itemStep > 0)
+		{
+			//first item with start + span > qStart
+			long firstRelevant = Math.floorDiv((long)qStart - head.itemSpan - head.start, head.itemStep) + 1;
+			first = (int)Math.max(0, Math.min(firstRelevant, head.itemCount));
+			block.position(block.position() + first * 4);
+		}
+		int s = head.start + (first-1)*head.itemStep;
 		int e = s+head.itemSpan;
-		for(int i = 0; i < head.itemCount; i++)
+		for(int i = first; i < head.itemCount; i++)
 		{
 			switch(head.type)
 			{
@@ -44,20 +89,111 @@ public class BigWigFile extends BigFile<WigEntry> {
 			default:
 				throw new AssertionError();
 			}
+			if(s >= qEnd)
+				break;
 			float val = block.getFloat();
 			
-			if(s < e && s < qEnd && qStart < e)
+			if(s < e && qStart < e)
 			{
-				resultList.add(new WigEntry(chromId, s, e, val));
-				if(maxItems > 0 && resultList.size() >= maxItems)
+				rec.chrId = chromId;
+				rec.start = s;
+				rec.end = e;
+				rec.val = val;
+				if(!visitor.visit(rec))
 					return false;
 			}
 		}
-		if(maxItems > 0 && resultList.size() >= maxItems)
-			return false;
 		return true;
 	}
+	
+	//Visit values overlapping the region without allocating objects per value, see RecordVisitor
+	//returns false if visitor stopped the query
+	public boolean queryIntervals(String chrom, int start, int end, RecordVisitor<WigRecord> visitor) throws IOException {
+		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo == null)
+			return true;
+		int chromId = chrInfo.id;
+		WigRecord rec = new WigRecord();
+		return readBlocks(chromId, start, end, (block, bb) -> visitBlock(chromId, start, end, bb, rec, visitor));
+	}
 
+	//Summary of values over @nBins equal bins of [start, end)
+	//Uses the coarsest zoom level with reductionLevel not exceeding half of the bin size,
+	//values are read only when there is no such level. Zoom records crossing bin boundary are split proportionally.
+	//Bins without data have validCount 0 and NaN min and max
+	public SummaryElement[] summary(String chrom, int start, int end, int nBins) throws IOException {
+		if(nBins <= 0 || end <= start)
+			throw new IllegalArgumentException("Invalid summary region " + start + "-" + end + " with " + nBins + " bins");
+		double[] count = new double[nBins], sum = new double[nBins], sumSq = new double[nBins];
+		double[] min = new double[nBins], max = new double[nBins];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		
+		ChromInfo chrInfo = getChromInfo(chrom);
+		if(chrInfo != null)
+		{
+			long length = (long)end - start;
+			ZoomLevel zoom = getBestZoomLevel((int)(length / nBins / 2));
+			if(zoom != null)
+				queryZoomRecords(zoom, chrInfo.id, start, end, rec -> {
+					double recLength = rec.end - rec.start;
+					for(int bin = binOf(rec.start, start, length, nBins); bin < nBins; bin++)
+					{
+						long binStart = start + length * bin / nBins, binEnd = start + length * (bin + 1) / nBins;
+						if(binStart >= rec.end)
+							break;
+						double factor = (Math.min(binEnd, rec.end) - Math.max(binStart, rec.start)) / recLength;
+						if(factor <= 0)
+							continue;
+						count[bin] += factor * rec.validCount;
+						sum[bin] += factor * rec.sum;
+						sumSq[bin] += factor * rec.sumSq;
+						min[bin] = Math.min(min[bin], rec.minVal);
+						max[bin] = Math.max(max[bin], rec.maxVal);
+					}
+					return true;
+				});
+			else
+				queryIntervals(chrom, start, end, rec -> {
+					double val = rec.val;
+					for(int bin = binOf(rec.start, start, length, nBins); bin < nBins; bin++)
+					{
+						long binStart = start + length * bin / nBins, binEnd = start + length * (bin + 1) / nBins;
+						if(binStart >= rec.end)
+							break;
+						long overlap = Math.min(binEnd, rec.end) - Math.max(binStart, rec.start);
+						if(overlap <= 0)
+							continue;
+						count[bin] += overlap;
+						sum[bin] += overlap * val;
+						sumSq[bin] += overlap * val * val;
+						min[bin] = Math.min(min[bin], val);
+						max[bin] = Math.max(max[bin], val);
+					}
+					return true;
+				});
+		}
+		
+		SummaryElement[] result = new SummaryElement[nBins];
+		for(int i = 0; i < nBins; i++)
+		{
+			SummaryElement e = result[i] = new SummaryElement();
+			e.validCount = Math.round(count[i]);
+			e.sum = sum[i];
+			e.sumSq = sumSq[i];
+			e.minVal = count[i] > 0 ? min[i] : Double.NaN;
+			e.maxVal = count[i] > 0 ? max[i] : Double.NaN;
+		}
+		return result;
+	}
+	
+	//Bin containing @pos, 0 if pos is before the region
+	private static int binOf(int pos, int start, long length, int nBins) {
+		if(pos <= start)
+			return 0;
+		return (int)(((long)pos - start) * nBins / length);
+	}
+	
 	@Override
 	protected int getFileMagic() {
 		return Header.MAGIC_BIGWIG;
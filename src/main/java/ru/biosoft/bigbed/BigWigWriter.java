@@ -0,0 +1,206 @@
+package ru.biosoft.bigbed;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import ru.biosoft.bigbed.RTreeIndexBuilder.RTree;
+
+//Writes BigWig file from stream of values
+//Memory holds one section of items, index data per block (data and zoom blocks) and the current window of each zoom level,
+//zoom blocks are collected in temporary files (see ZoomWriter)
+public class BigWigWriter {
+	
+	//@items should be sorted by (chrId, start) and should not overlap
+	//chrs must fulfill chrs[i].id = i
+	public static void write(Iterator<WigEntry> items, List<ChromInfo> chrs, File outFile, BigWigWriterOptions options) throws IOException
+	{
+		if(options.itemsPerSlot <= 0 || options.itemsPerSlot > 0xFFFF)
+			throw new IllegalArgumentException("itemsPerSlot should be in range [1,65535] for BigWig: " + options.itemsPerSlot);
+		
+		try(BufferedFileOutput out = new BufferedFileOutput(outFile))
+		{
+			Utils.writeNBytes(out, (byte)0, 64);//dummy header
+			Utils.writeNBytes(out, (byte)0, BigFile.MAX_ZOOM_LEVELS*24);//dummy zoom levels
+		
+			long totalSummaryOffset = out.getFilePointer();
+			SummaryElement totalSummary = new SummaryElement();
+			totalSummary.initValues();
+			totalSummary.write(out);
+		
+			long chromTreeOffset = out.getFilePointer();
+			BigBedWriter.writeChromTree(chrs, out, options.blockSize);
+		
+			long dataOffset = out.getFilePointer();
+			out.writeInt(0);//section count, filled later
+		
+			SectionWriter sections = new SectionWriter(out, options);
+			long indexOffset;
+			List<ZoomLevel> zoomLevels = Collections.emptyList();
+			int maxUncompressedLength;
+			try
+			{
+				List<WigEntry> section = new ArrayList<>();
+				WigEntry prev = null;
+				while(items.hasNext())
+				{
+					WigEntry e = items.next();
+					if(e.chrId < 0 || e.chrId >= chrs.size())
+						throw new IllegalArgumentException("Unknown chromosome id " + e.chrId);
+					if(e.end <= e.start)
+						throw new IllegalArgumentException("Empty item " + e);
+					if(prev != null && (e.chrId < prev.chrId || (e.chrId == prev.chrId && e.start < prev.end)))
+						throw new IllegalArgumentException("Items should be sorted and should not overlap: " + prev + ", " + e);
+					prev = e;
+			
+					if(!section.isEmpty() && (section.get(0).chrId != e.chrId || section.size() >= options.itemsPerSlot))
+					{
+						sections.write(section);
+						section.clear();
+					}
+					section.add(e);
+					totalSummary.addSummary(e.end - e.start, (float)e.val);//value as stored in the file
+				}
+				if(!section.isEmpty())
+					sections.write(section);
+				sections.blockWriter.flush();
+		
+				indexOffset = out.getFilePointer();
+				RTree rTree = RTreeIndexBuilder.buildRTree(sections.blocks, options.blockSize);
+				RTreeIndexWriter.writeRTree(rTree, out);
+		
+				maxUncompressedLength = sections.blockWriter.getMaxUncompressedLength();
+				if(sections.zoomWriter != null)
+				{
+					zoomLevels = sections.zoomWriter.write(out);
+					maxUncompressedLength = Math.max(maxUncompressedLength, sections.zoomWriter.getMaxUncompressedLength());
+				}
+			}
+			finally
+			{
+				sections.close();//cancels unwritten blocks, deletes temporary files of zoom levels
+			}
+		
+			//Write BigWig header
+			out.seek(0);
+			out.writeInt(Header.MAGIC_BIGWIG);
+			out.writeShort(BigFile.VERSION);
+			out.writeShort(zoomLevels.size());
+			out.writeLong(chromTreeOffset);
+			out.writeLong(dataOffset);
+			out.writeLong(indexOffset);
+			out.writeShort(0);//field count
+			out.writeShort(0);//defined field count
+			out.writeLong(0);//autoSql offset
+			out.writeLong(totalSummaryOffset);
+			out.writeInt(options.compress ? maxUncompressedLength : 0);
+			out.writeLong(0);//extension offset
+			if(out.getFilePointer() != 64)
+				throw new AssertionError();
+			for(ZoomLevel zoom : zoomLevels)
+				zoom.write(out);
+		
+			out.seek(totalSummaryOffset);
+			totalSummary.write(out);
+		
+			out.seek(dataOffset);
+			out.writeInt(sections.blocks.size());
+		}
+	}
+	
+	//Reads values in wig (variableStep, fixedStep) or bedGraph format, see WigReader
+	public static void write(Reader wig, List<ChromInfo> chrs, File outFile, BigWigWriterOptions options) throws IOException
+	{
+		try(WigReader reader = new WigReader(wig, chrs))
+		{
+			write(reader, chrs, outFile, options);
+		}
+	}
+	
+	//Writes sections as data blocks and passes their items to zoom levels
+	private static class SectionWriter implements Closeable
+	{
+		static final byte BED_GRAPH = 1, VARIABLE_STEP = 2, FIXED_STEP = 3;
+		
+		final BigWigWriterOptions options;
+		final List<Block> blocks = new ArrayList<>();
+		final BlockWriter blockWriter;
+		final DataOutputStream blockDataOut;
+		ZoomWriter zoomWriter;//created with the first section, when the typical item size is known
+		
+		SectionWriter(BufferedFileOutput out, BigWigWriterOptions options)
+		{
+			this.options = options;
+			blockWriter = new BlockWriter(out, options);
+			blockDataOut = blockWriter.data();
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			blockWriter.close();
+			if(zoomWriter != null)
+				zoomWriter.close();
+		}
+		
+		//Items of single chromosome, sorted and not overlapping
+		//Uses fixedStep when all items have the same span and step, variableStep when they have the same span and bedGraph otherwise
+		void write(List<WigEntry> items) throws IOException
+		{
+			WigEntry first = items.get(0), last = items.get(items.size() - 1);
+			int span = first.end - first.start;
+			int step = items.size() > 1 ? items.get(1).start - first.start : span;
+			boolean sameSpan = true, sameStep = true;
+			for(int i = 1; i < items.size(); i++)
+			{
+				WigEntry e = items.get(i);
+				sameSpan &= e.end - e.start == span;
+				sameStep &= e.start - items.get(i - 1).start == step;
+			}
+			byte type = sameSpan ? (sameStep ? FIXED_STEP : VARIABLE_STEP) : BED_GRAPH;
+			
+			blockDataOut.writeInt(first.chrId);
+			blockDataOut.writeInt(first.start);
+			blockDataOut.writeInt(last.end);
+			blockDataOut.writeInt(type == FIXED_STEP ? step : 0);
+			blockDataOut.writeInt(sameSpan ? span : 0);
+			blockDataOut.writeByte(type);
+			blockDataOut.writeByte(0);//reserved
+			blockDataOut.writeShort(items.size());
+			for(WigEntry e : items)
+			{
+				if(type != FIXED_STEP)
+					blockDataOut.writeInt(e.start);
+				if(type == BED_GRAPH)
+					blockDataOut.writeInt(e.end);
+				blockDataOut.writeFloat((float)e.val);
+			}
+			
+			Block block = new Block();
+			block.chrId = first.chrId;
+			block.chrStart = first.start;
+			block.chrEnd = last.end;
+			block.siteOffset = blocks.size();
+			block.siteCount = items.size();
+			blockWriter.finishBlock(block);
+			blocks.add(block);
+			
+			if(zoomWriter == null && options.zoomLevels > 0)
+			{
+				long length = 0;
+				for(WigEntry e : items)
+					length += e.end - e.start;
+				zoomWriter = new ZoomWriter((int)Math.min(Integer.MAX_VALUE, length * 10 / items.size()), options);
+			}
+			if(zoomWriter != null)
+				for(WigEntry e : items)
+					zoomWriter.addRun(e.chrId, e.start, e.end, (float)e.val);
+		}
+	}
+}
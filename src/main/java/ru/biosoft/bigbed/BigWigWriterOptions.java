@@ -0,0 +1,8 @@
+package ru.biosoft.bigbed;
+
+public class BigWigWriterOptions extends BigWriterOptions {
+	public BigWigWriterOptions()
+	{
+		itemsPerSlot = 1024;//section item count is stored in 2 bytes, so at most 65535
+	}
+}
@@ -0,0 +1,16 @@
+package ru.biosoft.bigbed;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+//Options common for BigBed and BigWig writers
+public class BigWriterOptions {
+	public int blockSize = 256;//number of records per node in BPlusTree index or number of records in RTreeIndex node
+	public int itemsPerSlot = 512;//number of items per data block
+	public boolean compress = true;
+	public int compressionLevel = Deflater.DEFAULT_COMPRESSION;//zlib compression level of data blocks, 0-9 or -1 for zlib default
+	public Executor compressExecutor;//compress blocks on this executor while encoding next ones, null to compress on the writing thread
+	public int zoomLevels = BigFile.MAX_ZOOM_LEVELS;//maximal number of zoom levels to write, 0 to write none
+	public File tempDir;//directory for temporary files (zoom levels, sorted runs of BigBed sites), null for default temporary directory
+}
@@ -0,0 +1,11 @@
+package ru.biosoft.bigbed;
+
+//Cache of decompressed data blocks keyed by (file, offset of compressed block in file)
+//Single instance can be shared by many open BigFiles, implementations must be thread safe
+public interface BlockCache {
+	//returns null if block is not cached
+	byte[] get(String file, long offset);
+	
+	//block array should not be modified after put
+	void put(String file, long offset, byte[] block);
+}
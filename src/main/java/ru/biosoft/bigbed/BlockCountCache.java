@@ -0,0 +1,64 @@
+package ru.biosoft.bigbed;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Record counts of data blocks keyed by block offset, see BigBedFile.countIntervals
+//Entries are distributed between independently locked segments, so concurrent queries rarely wait for each other;
+//each segment keeps at most its share of @maxSize entries dropping the least recently used ones
+class BlockCountCache {
+	private static final int SEGMENT_COUNT = 16;
+
+	private final Segment[] segments;
+
+	BlockCountCache(int maxSize)
+	{
+		if(maxSize <= 0)
+			throw new IllegalArgumentException();
+		int segmentCount = Math.min(SEGMENT_COUNT, maxSize);
+		segments = new Segment[segmentCount];
+		for(int i = 0; i < segmentCount; i++)
+			segments[i] = new Segment(maxSize / segmentCount + (i < maxSize % segmentCount ? 1 : 0));
+	}
+
+	private static class Segment extends LinkedHashMap<Long, Integer>
+	{
+		private static final long serialVersionUID = 1L;
+		private final int maxSize;
+
+		Segment(int maxSize)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	//block offsets share low bits (blocks are of similar size), so they are mixed before choosing the segment
+	private Segment segment(long offset)
+	{
+		int h = (int) ((offset * 0x9E3779B97F4A7C15L) >>> 32);
+		return segments[Math.floorMod(h, segments.length)];
+	}
+
+	//Count of records in block at @offset or null if not known
+	Integer get(long offset)
+	{
+		Segment s = segment(offset);
+		synchronized(s) {
+			return s.get(offset);
+		}
+	}
+
+	void put(long offset, int count)
+	{
+		Segment s = segment(offset);
+		synchronized(s) {
+			s.put(offset, count);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package ru.biosoft.bigbed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+//Reads data blocks sorted by offset one by one and returns them uncompressed
+//Contiguous blocks are read with single read when the first of them is requested,
+//blocks found in BlockCache are not read at all
+//Returned buffer is valid until the next call of next()
+class BlockReader {
+	//Per thread buffers for workers uncompressing blocks of many readers, grown to the largest uncompressBufSize seen
+	private static final ThreadLocal<byte[][]> WORKER_BUF = ThreadLocal.withInitial(() -> new byte[1][0]);
+	
+	private final BigFile<?> file;
+	private final List<OffsetSize> blockList;
+	private final byte[] uncompressedBuf;
+	
+	private int iblock;//index of the next block
+	private int runEnd;//end (exclusive) of current run of contiguous blocks
+	private byte[] mergedBuf;//content of current run starting from mergedOffset, null if not read yet
+	private long mergedOffset;
+	private OffsetSize current;
+	
+	BlockReader(BigFile<?> file, List<OffsetSize> blockList)
+	{
+		this.file = file;
+		this.blockList = blockList;
+		uncompressedBuf = createUncompressBuffer();
+	}
+	
+	boolean hasNext()
+	{
+		return iblock < blockList.size();
+	}
+	
+	//The block returned by the last call of next()
+	OffsetSize current()
+	{
+		return current;
+	}
+	
+	ByteBuffer next() throws IOException
+	{
+		return uncompress(nextRaw(), uncompressedBuf);
+	}
+	
+	//Block content as stored in the file, or already uncompressed block from cache
+	static class RawBlock
+	{
+		OffsetSize block;
+		byte[] buf;
+		int start, length;
+		boolean cached;
+	}
+	
+	//Read the next block without uncompressing it
+	//Raw block does not depend on the state of the reader, so it can be uncompressed in another thread
+	RawBlock nextRaw() throws IOException
+	{
+		if(iblock >= runEnd)
+		{
+			runEnd = iblock + findContiguousBlocks(blockList, iblock);
+			mergedBuf = null;
+		}
+		OffsetSize curBlock = current = blockList.get(iblock++);
+		
+		RawBlock raw = new RawBlock();
+		raw.block = curBlock;
+		if(file.blockCache != null)
+		{
+			raw.buf = file.blockCache.get(file.source, curBlock.offset);
+			if(raw.buf != null)
+			{
+				raw.length = raw.buf.length;
+				raw.cached = true;
+				return raw;
+			}
+		}
+		
+		if(mergedBuf == null)
+		{
+			/* Read this and remaining contiguous blocks into mergedBuf. */
+			mergedOffset = curBlock.offset;
+			OffsetSize lastBlock = blockList.get(runEnd-1);
+			long mergedSize = lastBlock.offset + lastBlock.size - mergedOffset;
+			if(mergedSize > Integer.MAX_VALUE)
+				throw new ParseException("Merged size too big: " + mergedSize);
+			mergedBuf = new byte[(int)mergedSize];
+			file.dataSource.readFully(mergedOffset, mergedBuf, 0, (int)mergedSize);
+		}
+		raw.buf = mergedBuf;
+		raw.start = (int)(curBlock.offset-mergedOffset);
+		raw.length = (int)curBlock.size;
+		return raw;
+	}
+	
+	//Buffer for uncompress(), null if blocks are not compressed
+	private byte[] createUncompressBuffer()
+	{
+		return file.header.uncompressBufSize > 0 ? new byte[file.header.uncompressBufSize] : null;
+	}
+	
+	//Buffer for uncompress() owned by the calling thread, reused by all blocks it uncompresses; null if blocks are not compressed
+	//Valid until the next call from the same thread, so parsed records must not refer to it
+	byte[] workerUncompressBuffer()
+	{
+		int size = file.header.uncompressBufSize;
+		if(size <= 0)
+			return null;
+		byte[][] holder = WORKER_BUF.get();
+		if(holder[0].length < size)
+			holder[0] = new byte[size];
+		return holder[0];
+	}
+	
+	//Uncompress raw block into @uncompressedBuf (see createUncompressBuffer) and put it to cache
+	//Thread safe as long as each thread uses its own buffer
+	ByteBuffer uncompress(RawBlock raw, byte[] uncompressedBuf) throws IOException
+	{
+		byte[] buf = raw.buf;
+		int bufStart = raw.start, bufLength = raw.length;
+		if(!raw.cached)
+		{
+			if(uncompressedBuf != null)
+			{
+				bufLength = Utils.uncompress(buf, bufStart, bufLength, uncompressedBuf);
+				buf = uncompressedBuf;
+				bufStart = 0;
+			}
+			
+			if(file.blockCache != null)
+			{
+				buf = Arrays.copyOfRange(buf, bufStart, bufStart + bufLength);
+				bufStart = 0;
+				file.blockCache.put(file.source, raw.block.offset, buf);
+			}
+		}
+		
+		ByteBuffer bb = ByteBuffer.wrap(buf, bufStart, bufLength);
+		bb.order(file.dataSource.order());
+		return bb;
+	}
+	
+	//Return number of contiguous blocks starting at iblock
+	static int findContiguousBlocks(List<OffsetSize> blockList, int iblock) {
+		for(int i = iblock + 1; i < blockList.size(); i++)
+			if(blockList.get(i).offset != blockList.get(i-1).offset + blockList.get(i-1).size)
+				return i-iblock;
+		return blockList.size() - iblock;
+	}
+}
@@ -0,0 +1,140 @@
+package ru.biosoft.bigbed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+//Appends data blocks to the file in the order they are finished and fills Block offset and lengths
+//With options.compressExecutor blocks are compressed on it, while the calling thread keeps encoding next blocks,
+//the output is the same as with compression on the calling thread
+//Block.offsetInFile and Block.compressedLength are known only after flush()
+//close() cancels blocks not written yet, so writer should be closed when writing fails
+class BlockWriter implements Closeable {
+	//Maximal number of blocks being compressed at once
+	static final int COMPRESS_WINDOW = 64;
+	
+	//ByteArrayOutputStream giving access to its buffer, so block data is written without copying
+	static class BlockBuffer extends ByteArrayOutputStream
+	{
+		byte[] buffer()
+		{
+			return buf;
+		}
+	}
+	
+	private static class PendingBlock
+	{
+		final Block block;
+		final Future<byte[]> compressed;
+		
+		PendingBlock(Block block, Future<byte[]> compressed)
+		{
+			this.block = block;
+			this.compressed = compressed;
+		}
+	}
+	
+	private final BufferedFileOutput out;
+	private final BigWriterOptions options;
+	private final BlockBuffer blockOut = new BlockBuffer();
+	private final DataOutputStream blockDataOut = new DataOutputStream(blockOut);
+	private final ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+	private int maxUncompressedLength;
+	
+	BlockWriter(BufferedFileOutput out, BigWriterOptions options)
+	{
+		this.out = out;
+		this.options = options;
+	}
+	
+	//Stream for the data of current block
+	DataOutputStream data()
+	{
+		return blockDataOut;
+	}
+	
+	//Writes or schedules the data of current block as @block and starts the next one
+	void finishBlock(Block block) throws IOException
+	{
+		try
+		{
+			scheduleBlock(block);
+		}
+		catch(Throwable t)
+		{
+			close();
+			throw t;
+		}
+	}
+	
+	private void scheduleBlock(Block block) throws IOException
+	{
+		int length = blockOut.size();
+		block.uncompressedLength = length;
+		maxUncompressedLength = Math.max(maxUncompressedLength, length);
+		if(options.compress && options.compressExecutor != null)
+		{
+			while(pending.size() >= COMPRESS_WINDOW || (!pending.isEmpty() && pending.peek().compressed.isDone()))
+				writePending(pending.poll());
+			byte[] data = Arrays.copyOf(blockOut.buffer(), length);
+			int level = options.compressionLevel;
+			FutureTask<byte[]> task = new FutureTask<>(() -> Utils.compress(data, 0, data.length, level));
+			options.compressExecutor.execute(task);
+			pending.add(new PendingBlock(block, task));
+		}
+		else
+		{
+			block.offsetInFile = out.getFilePointer();
+			if(options.compress)
+				block.compressedLength = Utils.compress(blockOut.buffer(), 0, length, options.compressionLevel, out);
+			else
+			{
+				out.write(blockOut.buffer(), 0, length);
+				block.compressedLength = length;
+			}
+		}
+		blockOut.reset();
+	}
+	
+	//Waits for all scheduled blocks and writes them
+	void flush() throws IOException
+	{
+		try
+		{
+			while(!pending.isEmpty())
+				writePending(pending.poll());
+		}
+		finally
+		{
+			close();
+		}
+	}
+	
+	//Cancels scheduled blocks that were not written, does nothing after successful flush()
+	//Running compressions are left to finish, as interrupting would affect the shared compressExecutor threads
+	@Override
+	public void close()
+	{
+		for(PendingBlock p : pending)
+			p.compressed.cancel(false);
+		pending.clear();
+	}
+	
+	int getMaxUncompressedLength()
+	{
+		return maxUncompressedLength;
+	}
+	
+	private void writePending(PendingBlock p) throws IOException
+	{
+		byte[] compressed = BigFile.getResult(p.compressed);
+		p.block.offsetInFile = out.getFilePointer();
+		p.block.compressedLength = compressed.length;
+		out.write(compressed);
+	}
+}
@@ -0,0 +1,203 @@
+package ru.biosoft.bigbed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//DataSource decorator that serves sequential reads (seek/readInt/readFully/...) from page sized buffer
+//Pages are aligned to pageSize, so walking file structures costs one read per page instead of one read per value
+//Positional reads are passed to the underlying DataSource unbuffered and remain thread safe
+public class BufferedDataSource implements DataSource {
+	public static final int DEFAULT_PAGE_SIZE = 64 * 1024;
+
+	private final DataSource source;
+	private final int pageSize;
+	private final byte[] page;
+	private final ByteBuffer pageBuf;
+	private long pageStart = -1;//file offset of page[0]
+	private int pageLength;//number of valid bytes in page
+
+	private long pos;
+	private final byte[] skipProbe = new byte[1];
+
+	public BufferedDataSource(DataSource source)
+	{
+		this(source, DEFAULT_PAGE_SIZE);
+	}
+
+	public BufferedDataSource(DataSource source, int pageSize)
+	{
+		if(pageSize < 8)
+			throw new IllegalArgumentException("pageSize " + pageSize);
+		this.source = source;
+		this.pageSize = pageSize;
+		this.page = new byte[pageSize];
+		this.pageBuf = ByteBuffer.wrap(page).order(source.order());
+	}
+
+	@Override
+	public void open(String source) throws IOException {
+		this.source.open(source);
+		pageStart = -1;
+		pageLength = 0;
+		pos = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	@Override
+	public ByteOrder order() {
+		return pageBuf.order();
+	}
+
+	@Override
+	public void setOrder(ByteOrder order) {
+		pageBuf.order(order);
+		source.setOrder(order);
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		this.pos = pos;
+	}
+
+	@Override
+	public void skip(int n) throws IOException {
+		//like RAFDataSource, skipping beyond the end of file is an error
+		long last = pos + n - 1;
+		if(n > 0 && (last < pageStart || last >= pageStart + pageLength) && source.read(last, skipProbe, 0, 1) < 0)
+			throw new EOFException();
+		pos += n;
+	}
+
+	@Override
+	public long tell() throws IOException {
+		return pos;
+	}
+
+	//Load page with file content starting at @start
+	private void loadPage(long start) throws IOException {
+		pageStart = start;
+		pageLength = 0;
+		while(pageLength < pageSize)
+		{
+			int n = source.read(start + pageLength, page, pageLength, pageSize - pageLength);
+			if(n < 0)
+				break;
+			pageLength += n;
+		}
+	}
+
+	//Make n <= pageSize bytes starting at pos available in page, returns index of pos in page
+	private int ensure(int n) throws IOException {
+		if(pos < pageStart || pos + n > pageStart + pageLength)
+		{
+			long alignedStart = pos - pos % pageSize;
+			loadPage(pos + n <= alignedStart + pageSize ? alignedStart : pos);
+			if(pos + n > pageStart + pageLength)
+				throw new EOFException();
+		}
+		return (int)(pos - pageStart);
+	}
+
+	@Override
+	public int read() throws IOException {
+		try {
+			return readByte() & 0xff;
+		} catch(EOFException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		int idx = ensure(1);
+		pos++;
+		return page[idx];
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		int idx = ensure(2);
+		pos += 2;
+		return pageBuf.getShort(idx);
+	}
+
+	@Override
+	public int readUShortAsInt() throws IOException {
+		return Short.toUnsignedInt(readShort());
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		int idx = ensure(4);
+		pos += 4;
+		return pageBuf.getInt(idx);
+	}
+
+	@Override
+	public int readUInt() throws IOException {
+		int res = readInt();
+		if(res < 0)
+			throw new ParseException("Int value is too big for java signed int type: " + Integer.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		int idx = ensure(8);
+		pos += 8;
+		return pageBuf.getLong(idx);
+	}
+
+	@Override
+	public long readULong() throws IOException {
+		long res = readLong();
+		if(res < 0)
+			throw new ParseException("Long value is too big for java signed long type: " + Long.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public void readFully(byte[] buf, int offset, int length) throws IOException {
+		//copy the part already in page
+		if(pos >= pageStart && pos < pageStart + pageLength)
+		{
+			int idx = (int)(pos - pageStart);
+			int n = Math.min(length, pageLength - idx);
+			System.arraycopy(page, idx, buf, offset, n);
+			pos += n;
+			offset += n;
+			length -= n;
+		}
+		if(length == 0)
+			return;
+		if(length >= pageSize)
+		{
+			//large reads bypass the buffer
+			source.readFully(pos, buf, offset, length);
+			pos += length;
+		}
+		else
+		{
+			int idx = ensure(length);
+			System.arraycopy(page, idx, buf, offset, length);
+			pos += length;
+		}
+	}
+
+	@Override
+	public int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException {
+		return source.read(fileOffset, data, dataOffset, size);
+	}
+
+}
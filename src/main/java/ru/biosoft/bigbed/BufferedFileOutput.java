@@ -0,0 +1,185 @@
+package ru.biosoft.bigbed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+//Big endian DataOutput over FileChannel buffered in direct ByteBuffer, replaces RandomAccessFile in writers
+//Like RandomAccessFile it has file pointer, seek() is used to patch already written headers and tables
+public class BufferedFileOutput implements DataOutput, Closeable {
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	private static final int FILL_CHUNK_SIZE = 4096;
+	private static final byte[] ZEROS = new byte[FILL_CHUNK_SIZE];//source of bulk puts in writeNBytes
+	
+	private final FileChannel channel;
+	private final ByteBuffer buf;
+	private long bufStart;//file position of the first buffered byte
+	
+	//Existing file is truncated
+	public BufferedFileOutput(File file) throws IOException
+	{
+		this(file, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public BufferedFileOutput(File file, int bufferSize) throws IOException
+	{
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buf = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+	}
+	
+	public long getFilePointer()
+	{
+		return bufStart + buf.position();
+	}
+	
+	//Next writes go to @pos, overwriting data written before
+	public void seek(long pos) throws IOException
+	{
+		flush();
+		bufStart = pos;
+	}
+	
+	public void flush() throws IOException
+	{
+		buf.flip();
+		while(buf.hasRemaining())
+			bufStart += channel.write(buf, bufStart);
+		buf.clear();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	private void ensure(int n) throws IOException
+	{
+		if(buf.remaining() < n)
+			flush();
+	}
+	
+	//Write @n copies of @val
+	public void writeNBytes(byte val, long n) throws IOException
+	{
+		byte[] fill = ZEROS;
+		if(val != 0)
+		{
+			fill = new byte[(int)Math.min(n, FILL_CHUNK_SIZE)];
+			Arrays.fill(fill, val);
+		}
+		while(n > 0)
+		{
+			if(!buf.hasRemaining())
+				flush();
+			int chunk = (int)Math.min(Math.min(n, buf.remaining()), fill.length);
+			buf.put(fill, 0, chunk);
+			n -= chunk;
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensure(1);
+		buf.put((byte)b);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(len > buf.capacity())
+		{
+			flush();
+			ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			while(src.hasRemaining())
+				bufStart += channel.write(src, bufStart);
+			return;
+		}
+		ensure(len);
+		buf.put(b, off, len);
+	}
+
+	@Override
+	public void writeBoolean(boolean v) throws IOException {
+		write(v ? 1 : 0);
+	}
+
+	@Override
+	public void writeByte(int v) throws IOException {
+		write(v);
+	}
+
+	@Override
+	public void writeShort(int v) throws IOException {
+		ensure(2);
+		buf.putShort((short)v);
+	}
+
+	@Override
+	public void writeChar(int v) throws IOException {
+		ensure(2);
+		buf.putChar((char)v);
+	}
+
+	@Override
+	public void writeInt(int v) throws IOException {
+		ensure(4);
+		buf.putInt(v);
+	}
+
+	@Override
+	public void writeLong(long v) throws IOException {
+		ensure(8);
+		buf.putLong(v);
+	}
+
+	@Override
+	public void writeFloat(float v) throws IOException {
+		ensure(4);
+		buf.putFloat(v);
+	}
+
+	@Override
+	public void writeDouble(double v) throws IOException {
+		ensure(8);
+		buf.putDouble(v);
+	}
+
+	@Override
+	public void writeBytes(String s) throws IOException {
+		for(int i = 0; i < s.length(); i++)
+			write(s.charAt(i));
+	}
+
+	@Override
+	public void writeChars(String s) throws IOException {
+		for(int i = 0; i < s.length(); i++)
+			writeChar(s.charAt(i));
+	}
+
+	@Override
+	public void writeUTF(String s) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF(s);
+		write(bytes.toByteArray());
+	}
+}
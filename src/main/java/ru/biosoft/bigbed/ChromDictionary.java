@@ -0,0 +1,68 @@
+package ru.biosoft.bigbed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//In memory copy of chromosome B+ tree
+//Chromosomes are stored in array indexed by id and open addressing hash table of ids by name,
+//so there are no per entry objects except ChromInfo itself
+public class ChromDictionary {
+	private final ChromInfo[] byId;//null for ids not present in file
+	private final int[] table;//ids, -1 for empty slots, length is power of two
+	private final int size;
+	
+	ChromDictionary(List<ChromInfo> chroms)
+	{
+		int maxId = -1;
+		for(ChromInfo c : chroms)
+			maxId = Math.max(maxId, c.id);
+		byId = new ChromInfo[maxId + 1];
+		for(ChromInfo c : chroms)
+			byId[c.id] = c;
+		size = chroms.size();
+		
+		int capacity = Integer.highestOneBit(Math.max(1, size * 2 - 1)) * 2;
+		table = new int[capacity];
+		Arrays.fill(table, -1);
+		for(ChromInfo c : chroms)
+			table[findSlot(c.name)] = c.id;
+	}
+	
+	static ChromDictionary load(BigFile<?> file) throws IOException
+	{
+		List<ChromInfo> chroms = new ArrayList<>((int)file.bPlusTree.itemCount);
+		file.traverseChroms(chroms::add);
+		return new ChromDictionary(chroms);
+	}
+	
+	//slot containing @name or empty slot where it should be inserted
+	private int findSlot(String name)
+	{
+		int mask = table.length - 1;
+		int h = name.hashCode();
+		int i = (h ^ (h >>> 16)) & mask;
+		while(table[i] != -1 && !byId[table[i]].name.equals(name))
+			i = (i + 1) & mask;
+		return i;
+	}
+	
+	//returns null if there is no such chromosome
+	public ChromInfo get(String name)
+	{
+		int id = table[findSlot(name)];
+		return id == -1 ? null : byId[id];
+	}
+	
+	//returns null if there is no such chromosome
+	public ChromInfo get(int id)
+	{
+		return id >= 0 && id < byId.length ? byId[id] : null;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+}
@@ -1,6 +1,7 @@
 package ru.biosoft.bigbed;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteOrder;
 
@@ -30,6 +31,21 @@ public interface DataSource extends Closeable {
 	
 	void readFully(byte[] buf, int offset, int length) throws IOException;
 	
-	//read up to @size bytes from file at offset @fileOffset to @data[dataOffset...] array  
-	//int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException;
+	//read up to @size bytes from file at offset @fileOffset to @data[dataOffset...] array
+	//returns number of bytes read or -1 at the end of file
+	//Positional reads don't use and don't change current position (seek/tell), so they can be called concurrently from multiple threads
+	int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException;
+	
+	default void readFully(long fileOffset, byte[] data, int dataOffset, int size) throws IOException
+	{
+		while(size > 0)
+		{
+			int n = read(fileOffset, data, dataOffset, size);
+			if(n < 0)
+				throw new EOFException();
+			fileOffset += n;
+			dataOffset += n;
+			size -= n;
+		}
+	}
 }
@@ -0,0 +1,195 @@
+package ru.biosoft.bigbed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+//External merge sort
+//Items are collected in memory until @memoryLimit is reached, then sorted and spilled to temporary file as a run,
+//runs are merged on iteration. Sorting is stable: equal items keep input order
+//Subclasses define approximate memory taken by an item and its encoding in runs
+abstract class ExternalSorter<T> implements Closeable {
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	private final Comparator<? super T> order;
+	private final long memoryLimit;
+	private final File tempDir;
+
+	private List<T> buffer = new ArrayList<>();
+	private long bufferBytes;
+	private final List<File> runFiles = new ArrayList<>();
+	private final List<Long> runSizes = new ArrayList<>();
+	private final List<RunReader> readers = new ArrayList<>();
+
+	private long count;
+
+	ExternalSorter(Comparator<? super T> order, long memoryLimit, File tempDir)
+	{
+		this.order = order;
+		this.memoryLimit = memoryLimit;
+		this.tempDir = tempDir;
+	}
+
+	//Approximate memory taken by @item in the buffer
+	protected abstract long memorySize(T item);
+
+	//Write @item to run, @prev is the previous item of the run or null for the first one
+	protected abstract void write(DataOutputStream out, T item, T prev) throws IOException;
+
+	//Read item written by write() with the same @prev
+	protected abstract T read(DataInputStream in, T prev) throws IOException;
+
+	void add(T item) throws IOException
+	{
+		buffer.add(item);
+		bufferBytes += memorySize(item);
+		count++;
+		if(bufferBytes >= memoryLimit)
+			spill();
+	}
+
+	long getCount()
+	{
+		return count;
+	}
+
+	//Sorted items, should be called once after all items were added
+	//IOException during iteration is thrown as UncheckedIOException
+	Iterator<T> sorted() throws IOException
+	{
+		if(runFiles.isEmpty())
+		{
+			buffer.sort(order);
+			return buffer.iterator();
+		}
+		if(!buffer.isEmpty())
+			spill();
+		buffer = null;
+		PriorityQueue<RunReader> queue = new PriorityQueue<>((r1, r2) -> {
+			int res = order.compare(r1.head, r2.head);
+			return res != 0 ? res : Integer.compare(r1.index, r2.index);
+		});
+		for(int i = 0; i < runFiles.size(); i++)
+		{
+			RunReader reader = new RunReader(runFiles.get(i), runSizes.get(i), i);
+			readers.add(reader);
+			reader.advance();
+			queue.add(reader);
+		}
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				return !queue.isEmpty();
+			}
+
+			@Override
+			public T next() {
+				if(queue.isEmpty())
+					throw new NoSuchElementException();
+				RunReader reader = queue.poll();
+				T res = reader.head;
+				try
+				{
+					if(reader.advance())
+						queue.add(reader);
+				}
+				catch(IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+				return res;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(RunReader reader : readers)
+			reader.in.close();
+		for(File file : runFiles)
+			file.delete();
+	}
+
+	private void spill() throws IOException
+	{
+		buffer.sort(order);
+		File file = File.createTempFile("bigbed", ".run", tempDir);
+		runFiles.add(file);
+		runSizes.add((long)buffer.size());
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER_SIZE)))
+		{
+			T prev = null;
+			for(T item : buffer)
+			{
+				write(out, item, prev);
+				prev = item;
+			}
+		}
+		buffer.clear();
+		bufferBytes = 0;
+	}
+
+	static void writeVarInt(DataOutputStream out, int val) throws IOException
+	{
+		while((val & ~0x7F) != 0)
+		{
+			out.write((val & 0x7F) | 0x80);
+			val >>>= 7;
+		}
+		out.write(val);
+	}
+
+	static int readVarInt(DataInputStream in) throws IOException
+	{
+		int res = 0;
+		for(int shift = 0; ; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			res |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return res;
+		}
+	}
+
+	private class RunReader
+	{
+		final DataInputStream in;
+		final int index;
+		long remaining;
+		T head;
+
+		RunReader(File file, long size, int index) throws IOException
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+			this.remaining = size;
+			this.index = index;
+		}
+
+		//reads next item into head, returns false at the end of run
+		boolean advance() throws IOException
+		{
+			if(remaining == 0)
+			{
+				head = null;
+				in.close();
+				return false;
+			}
+			remaining--;
+			head = read(in, head);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package ru.biosoft.bigbed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//DataSource over HTTP(S) using "Range:" requests
+//File is fetched by aligned chunks of chunkSize bytes which are kept in LRU cache,
+//missing adjacent chunks of single read are fetched with one request,
+//concurrent reads missing the same chunk wait for single request instead of sending their own
+//Connections are left open for reuse by HTTP keep-alive
+//Positional reads are thread safe
+public class HttpDataSource implements DataSource {
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public static final int DEFAULT_MAX_CACHED_CHUNKS = 256;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;//milliseconds
+	public static final int DEFAULT_READ_TIMEOUT = 60000;//milliseconds
+
+	private final int chunkSize;
+	private final int maxCachedChunks;
+	private final Map<Long, byte[]> chunks;
+	private final Map<Long, CompletableFuture<byte[]>> inFlight = new HashMap<>();//chunks being fetched, guarded by chunks
+
+	private URL url;
+	private long size;
+	private long pos;
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+	private final byte[] scratch = new byte[8];
+	private final ByteBuffer scratchBuf = ByteBuffer.wrap(scratch);
+
+	public HttpDataSource()
+	{
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CACHED_CHUNKS);
+	}
+
+	public HttpDataSource(int chunkSize, int maxCachedChunks)
+	{
+		if(chunkSize <= 0 || maxCachedChunks <= 0)
+			throw new IllegalArgumentException();
+		this.chunkSize = chunkSize;
+		this.maxCachedChunks = maxCachedChunks;
+		this.chunks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > HttpDataSource.this.maxCachedChunks;
+			}
+		};
+	}
+
+	public static boolean isHttp(String source)
+	{
+		return source.startsWith("http://") || source.startsWith("https://");
+	}
+
+	@Override
+	public void open(String source) throws IOException {
+		url = new URL(source);
+		synchronized(chunks) {
+			chunks.clear();
+		}
+		size = -1;
+		//fetching the first chunk also gives total file size from Content-Range
+		fetch(0, 1);
+		pos = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(chunks) {
+			chunks.clear();
+		}
+	}
+
+	public long size()
+	{
+		return size;
+	}
+
+	//Timeout of connecting to the server in milliseconds, 0 to wait forever
+	public void setConnectTimeout(int connectTimeout)
+	{
+		if(connectTimeout < 0)
+			throw new IllegalArgumentException("Negative timeout: " + connectTimeout);
+		this.connectTimeout = connectTimeout;
+	}
+	
+	//Timeout of waiting for response data in milliseconds, 0 to wait forever
+	//Concurrent reads of a chunk wait for the request of one of them, so stalled server would block all of them without timeout
+	public void setReadTimeout(int readTimeout)
+	{
+		if(readTimeout < 0)
+			throw new IllegalArgumentException("Negative timeout: " + readTimeout);
+		this.readTimeout = readTimeout;
+	}
+	
+	//Number of HTTP requests made so far
+	public int getRequestCount()
+	{
+		return requestCount.get();
+	}
+
+	//Fetch chunks [firstChunk, firstChunk+nChunks) with single request, returns fetched chunks
+	private byte[][] fetch(long firstChunk, int nChunks) throws IOException {
+		long start = firstChunk * chunkSize;
+		long end = start + (long)nChunks * chunkSize;//exclusive
+		if(size >= 0)
+			end = Math.min(end, size);
+		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		byte[] data;
+		try {
+			con.setConnectTimeout(connectTimeout);
+			con.setReadTimeout(readTimeout);
+			con.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+			requestCount.incrementAndGet();
+			int code = con.getResponseCode();
+			if(code == 416)//Range not satisfiable
+				throw new EOFException();
+			if(code != HttpURLConnection.HTTP_PARTIAL)
+				throw new IOException("Range request to " + url + " failed with HTTP status " + code);
+			if(size < 0)
+				size = parseTotalSize(con.getHeaderField("Content-Range"));
+			end = Math.min(end, size);
+
+			data = new byte[(int)(end - start)];
+			//the stream is read to the end and closed, so the connection goes back to keep-alive cache
+			try(InputStream in = con.getInputStream())
+			{
+				int total = 0;
+				while(total < data.length)
+				{
+					int n = in.read(data, total, data.length - total);
+					if(n < 0)
+						throw new EOFException();
+					total += n;
+				}
+				byte[] rest = new byte[1024];
+				while(in.read(rest) >= 0)
+					;
+			}
+		} catch(IOException | RuntimeException e) {
+			con.disconnect();
+			throw e;
+		}
+
+		byte[][] res = new byte[nChunks][];
+		synchronized(chunks) {
+			for(int i = 0; i < nChunks; i++)
+			{
+				int from = i * chunkSize;
+				if(from >= data.length)
+					break;
+				byte[] chunk = new byte[Math.min(chunkSize, data.length - from)];
+				System.arraycopy(data, from, chunk, 0, chunk.length);
+				res[i] = chunk;
+				chunks.put(firstChunk + i, chunk);
+			}
+		}
+		return res;
+	}
+
+	private static long parseTotalSize(String contentRange) throws IOException {
+		//bytes 0-65535/1234567
+		int idx = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+		if(idx == -1 || contentRange.endsWith("*"))
+			throw new IOException("Can not get file size from Content-Range: " + contentRange);
+		return Long.parseLong(contentRange.substring(idx + 1).trim());
+	}
+
+	@Override
+	public int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException {
+		if(fileOffset >= this.size)
+			return -1;
+		size = (int) Math.min(size, this.size - fileOffset);
+		if(size == 0)
+			return 0;
+		long firstChunk = fileOffset / chunkSize;
+		long lastChunk = (fileOffset + size - 1) / chunkSize;
+		int nChunks = (int)(lastChunk - firstChunk + 1);
+
+		byte[][] parts = new byte[nChunks][];
+		List<CompletableFuture<byte[]>> waits = new ArrayList<>(nChunks);
+		boolean[] own = new boolean[nChunks];//chunks this call should fetch
+		synchronized(chunks) {
+			for(int i = 0; i < nChunks; i++)
+			{
+				CompletableFuture<byte[]> wait = null;
+				parts[i] = chunks.get(firstChunk + i);
+				if(parts[i] == null)
+				{
+					wait = inFlight.get(firstChunk + i);
+					if(wait == null)
+					{
+						wait = new CompletableFuture<>();
+						inFlight.put(firstChunk + i, wait);
+						own[i] = true;
+					}
+				}
+				waits.add(wait);
+			}
+		}
+		//coalesce adjacent own chunks into single request
+		Throwable error = null;
+		try {
+			for(int i = 0; i < nChunks; )
+			{
+				if(!own[i])
+				{
+					i++;
+					continue;
+				}
+				int j = i + 1;
+				while(j < nChunks && own[j])
+					j++;
+				if(error == null)
+				{
+					byte[][] fetched = null;
+					try {
+						fetched = fetch(firstChunk + i, j - i);
+					} catch(Throwable t) {
+						error = t;
+					}
+					if(fetched != null)
+					{
+						synchronized(chunks) {
+							for(int k = i; k < j; k++)
+							{
+								inFlight.remove(firstChunk + k);
+								waits.get(k).complete(fetched[k - i]);
+								own[k] = false;
+							}
+						}
+					}
+				}
+				i = j;
+			}
+		} finally {
+			//own chunks that were not fetched fail, so threads waiting for them never hang
+			synchronized(chunks) {
+				for(int k = 0; k < nChunks; k++)
+				{
+					if(!own[k])
+						continue;
+					inFlight.remove(firstChunk + k);
+					waits.get(k).completeExceptionally(error != null ? error : new IOException("Fetch of " + url + " was not completed"));
+				}
+			}
+		}
+		for(int i = 0; i < nChunks; i++)
+			if(parts[i] == null)
+				parts[i] = BigFile.getResult(waits.get(i));
+
+		int total = 0;
+		for(int i = 0; i < nChunks; i++)
+		{
+			long chunkStart = (firstChunk + i) * chunkSize;
+			int from = (int)(fileOffset + total - chunkStart);
+			int n = Math.min(size - total, parts[i].length - from);
+			System.arraycopy(parts[i], from, data, dataOffset + total, n);
+			total += n;
+		}
+		return total;
+	}
+
+	ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+	public ByteOrder order() { return byteOrder; }
+	public void setOrder(ByteOrder order) {
+		this.byteOrder = order;
+		scratchBuf.order(order);
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		this.pos = pos;
+	}
+
+	@Override
+	public void skip(int n) throws IOException {
+		if(pos + n > size)
+			throw new EOFException();
+		pos += n;
+	}
+
+	@Override
+	public long tell() throws IOException {
+		return pos;
+	}
+
+	private ByteBuffer readScratch(int n) throws IOException {
+		readFully(pos, scratch, 0, n);
+		pos += n;
+		return scratchBuf;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(pos >= size)
+			return -1;
+		return readByte() & 0xff;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		return readScratch(1).get(0);
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		return readScratch(2).getShort(0);
+	}
+
+	@Override
+	public int readUShortAsInt() throws IOException {
+		return Short.toUnsignedInt(readShort());
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return readScratch(4).getInt(0);
+	}
+
+	@Override
+	public int readUInt() throws IOException {
+		int res = readInt();
+		if(res < 0)
+			throw new ParseException("Int value is too big for java signed int type: " + Integer.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		return readScratch(8).getLong(0);
+	}
+
+	@Override
+	public long readULong() throws IOException {
+		long res = readLong();
+		if(res < 0)
+			throw new ParseException("Long value is too big for java signed long type: " + Long.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public void readFully(byte[] buf, int offset, int length) throws IOException {
+		readFully(pos, buf, offset, length);
+		pos += length;
+	}
+
+}
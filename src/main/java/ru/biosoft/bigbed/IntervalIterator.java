@@ -0,0 +1,66 @@
+package ru.biosoft.bigbed;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+//Iterator over query results that reads and parses blocks on demand, so only one block of records is kept in memory
+//IOException during iteration is thrown as UncheckedIOException
+public class IntervalIterator<T> implements Iterator<T>, AutoCloseable {
+	private final BigFile<T> file;
+	private final int chromId, start, end;
+	private final int maxItems;
+	private BlockReader reader;
+	
+	private final List<T> blockItems = new ArrayList<>();//parsed records of current block
+	private int blockPos;
+	private int returned;
+	
+	IntervalIterator(BigFile<T> file, int chromId, int start, int end, int maxItems, List<OffsetSize> blockList)
+	{
+		this.file = file;
+		this.chromId = chromId;
+		this.start = start;
+		this.end = end;
+		this.maxItems = maxItems;
+		this.reader = new BlockReader(file, blockList);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(maxItems > 0 && returned >= maxItems)
+			return false;
+		while(blockPos >= blockItems.size())
+		{
+			if(reader == null || !reader.hasNext())
+				return false;
+			blockItems.clear();
+			blockPos = 0;
+			try {
+				file.parseBlock(chromId, start, end, maxItems > 0 ? maxItems - returned : 0, reader.next(), blockItems);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		returned++;
+		return blockItems.get(blockPos++);
+	}
+
+	//Release buffers, the underlying file stays open
+	@Override
+	public void close() {
+		reader = null;
+		blockItems.clear();
+		blockPos = 0;
+	}
+}
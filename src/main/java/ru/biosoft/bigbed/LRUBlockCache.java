@@ -0,0 +1,166 @@
+package ru.biosoft.bigbed;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//BlockCache bounded by total size of cached blocks in bytes
+//Entries are distributed between independently locked segments, the size limit is global:
+//the segment receiving a block evicts its least recently used blocks first, then other segments evict theirs in turn
+//Any block not larger than maxBytes can be cached
+public class LRUBlockCache implements BlockCache {
+	private static final int DEFAULT_SEGMENT_COUNT = 16;
+	
+	private final long maxBytes;
+	private final Segment[] segments;
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final AtomicInteger evictCursor = new AtomicInteger();//next segment to evict from when the receiving one is exhausted
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	
+	public LRUBlockCache(long maxBytes)
+	{
+		this(maxBytes, DEFAULT_SEGMENT_COUNT);
+	}
+	
+	public LRUBlockCache(long maxBytes, int segmentCount)
+	{
+		if(maxBytes < 0 || segmentCount <= 0)
+			throw new IllegalArgumentException();
+		this.maxBytes = maxBytes;
+		segments = new Segment[segmentCount];
+		for(int i = 0; i < segmentCount; i++)
+			segments[i] = new Segment();
+	}
+	
+	private static class Key
+	{
+		final String file;
+		final long offset;
+		Key(String file, long offset) {
+			this.file = file;
+			this.offset = offset;
+		}
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + Long.hashCode(offset);
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return offset == other.offset && file.equals(other.file);
+		}
+	}
+	
+	private class Segment
+	{
+		long bytes;
+		final LinkedHashMap<Key, byte[]> map = new LinkedHashMap<>(16, 0.75f, true);//access order
+		
+		synchronized byte[] get(Key key) {
+			return map.get(key);
+		}
+		
+		//evicts own blocks except @key while the cache is over budget
+		synchronized void put(Key key, byte[] block) {
+			byte[] old = map.put(key, block);
+			long delta = block.length - (old == null ? 0 : old.length);
+			bytes += delta;
+			totalBytes.addAndGet(delta);
+			Iterator<Map.Entry<Key, byte[]>> it = map.entrySet().iterator();
+			while(totalBytes.get() > maxBytes && it.hasNext())
+			{
+				Map.Entry<Key, byte[]> e = it.next();
+				if(e.getKey().equals(key))
+					continue;
+				remove(it, e.getValue());
+			}
+		}
+		
+		//returns false if segment has nothing to evict
+		synchronized boolean evictEldest() {
+			Iterator<Map.Entry<Key, byte[]>> it = map.entrySet().iterator();
+			if(!it.hasNext())
+				return false;
+			remove(it, it.next().getValue());
+			return true;
+		}
+		
+		private void remove(Iterator<Map.Entry<Key, byte[]>> it, byte[] block) {
+			it.remove();
+			bytes -= block.length;
+			totalBytes.addAndGet(-block.length);
+			evictions.incrementAndGet();
+		}
+		
+		synchronized void clear() {
+			map.clear();
+			totalBytes.addAndGet(-bytes);
+			bytes = 0;
+		}
+	}
+	
+	private Segment segment(Key key)
+	{
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[Math.floorMod(h, segments.length)];
+	}
+
+	@Override
+	public byte[] get(String file, long offset) {
+		Key key = new Key(file, offset);
+		byte[] res = segment(key).get(key);
+		if(res == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return res;
+	}
+
+	@Override
+	public void put(String file, long offset, byte[] block) {
+		if(block.length > maxBytes)
+			return;
+		Key key = new Key(file, offset);
+		Segment own = segment(key);
+		own.put(key, block);
+		//own segment was not enough, evict from the others round robin, locking one segment at a time
+		int idle = 0;
+		while(totalBytes.get() > maxBytes && idle < segments.length)
+		{
+			Segment s = segments[Math.floorMod(evictCursor.getAndIncrement(), segments.length)];
+			if(s != own && s.evictEldest())
+				idle = 0;
+			else
+				idle++;
+		}
+	}
+	
+	public void clear()
+	{
+		for(Segment s : segments)
+			s.clear();
+	}
+	
+	//Total size of cached blocks in bytes
+	public long getSize()
+	{
+		return totalBytes.get();
+	}
+	
+	public long getHitCount() { return hits.get(); }
+	public long getMissCount() { return misses.get(); }
+	public long getEvictionCount() { return evictions.get(); }
+	
+	@Override
+	public String toString() {
+		return "LRUBlockCache [size=" + getSize() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+}
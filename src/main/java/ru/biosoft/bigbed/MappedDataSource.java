@@ -0,0 +1,242 @@
+package ru.biosoft.bigbed;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//DataSource over memory mapped file
+//The file is mapped by segments of 2^segmentBits bytes, so files larger than 2Gb are supported
+//Values crossing segment boundary are assembled byte by byte
+public class MappedDataSource implements DataSource {
+	public static final int DEFAULT_SEGMENT_BITS = 30;//1Gb segments
+
+	private final int segmentBits;
+	private final long segmentMask;
+
+	private MappedByteBuffer[] segments;
+	private long size;
+	private long pos;
+
+	public MappedDataSource()
+	{
+		this(DEFAULT_SEGMENT_BITS);
+	}
+
+	public MappedDataSource(int segmentBits)
+	{
+		if(segmentBits < 3 || segmentBits > 30)
+			throw new IllegalArgumentException("segmentBits " + segmentBits);
+		this.segmentBits = segmentBits;
+		this.segmentMask = (1L << segmentBits) - 1;
+	}
+
+	@Override
+	public void open(String source) throws IOException {
+		try(RandomAccessFile file = new RandomAccessFile(source, "r"))
+		{
+			//mapping stays valid after the channel is closed
+			FileChannel channel = file.getChannel();
+			size = channel.size();
+			long segmentSize = 1L << segmentBits;
+			int nSegments = (int)((size + segmentSize - 1) >>> segmentBits);
+			segments = new MappedByteBuffer[nSegments];
+			for(int i = 0; i < nSegments; i++)
+			{
+				long start = ((long)i) << segmentBits;
+				long length = Math.min(segmentSize, size - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				segments[i].order(byteOrder);
+			}
+		}
+		pos = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		//MappedByteBuffer can not be unmapped explicitly, the mapping is released by GC
+		segments = null;
+	}
+
+	public long size()
+	{
+		return size;
+	}
+
+	ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+	public ByteOrder order() { return byteOrder; }
+	public void setOrder(ByteOrder order)
+	{
+		this.byteOrder = order;
+		if(segments != null)
+			for(MappedByteBuffer s : segments)
+				s.order(order);
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		this.pos = pos;
+	}
+
+	@Override
+	public void skip(int n) throws IOException {
+		if(pos + n > size)
+			throw new EOFException();
+		pos += n;
+	}
+
+	@Override
+	public long tell() throws IOException {
+		return pos;
+	}
+
+	private MappedByteBuffer segment(long p)
+	{
+		return segments[(int)(p >>> segmentBits)];
+	}
+
+	private int index(long p)
+	{
+		return (int)(p & segmentMask);
+	}
+
+	//true if n bytes starting at p are in the same segment
+	private boolean inOneSegment(long p, int n)
+	{
+		return (p >>> segmentBits) == ((p + n - 1) >>> segmentBits);
+	}
+
+	private void checkAvailable(int n) throws EOFException
+	{
+		if(pos < 0 || pos + n > size)
+			throw new EOFException();
+	}
+
+	//Read n <= 8 bytes crossing segment boundary
+	private long readSplit(int n)
+	{
+		long res = 0;
+		for(int i = 0; i < n; i++)
+		{
+			long b = segment(pos).get(index(pos)) & 0xff;
+			pos++;
+			if(byteOrder == ByteOrder.BIG_ENDIAN)
+				res = (res << 8) | b;
+			else
+				res |= b << (8*i);
+		}
+		return res;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(pos >= size)
+			return -1;
+		return readByte() & 0xff;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		checkAvailable(1);
+		byte res = segment(pos).get(index(pos));
+		pos++;
+		return res;
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		checkAvailable(2);
+		if(!inOneSegment(pos, 2))
+			return (short) readSplit(2);
+		short res = segment(pos).getShort(index(pos));
+		pos += 2;
+		return res;
+	}
+
+	@Override
+	public int readUShortAsInt() throws IOException {
+		return Short.toUnsignedInt(readShort());
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		checkAvailable(4);
+		if(!inOneSegment(pos, 4))
+			return (int) readSplit(4);
+		int res = segment(pos).getInt(index(pos));
+		pos += 4;
+		return res;
+	}
+
+	@Override
+	public int readUInt() throws IOException {
+		int res = readInt();
+		if(res < 0)
+			throw new ParseException("Int value is too big for java signed int type: " + Integer.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		checkAvailable(8);
+		if(!inOneSegment(pos, 8))
+			return readSplit(8);
+		long res = segment(pos).getLong(index(pos));
+		pos += 8;
+		return res;
+	}
+
+	@Override
+	public long readULong() throws IOException {
+		long res = readLong();
+		if(res < 0)
+			throw new ParseException("Long value is too big for java signed long type: " + Long.toUnsignedString(res));
+		return res;
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	@Override
+	public void readFully(byte[] buf, int offset, int length) throws IOException {
+		checkAvailable(length);
+		while(length > 0)
+		{
+			int idx = index(pos);
+			ByteBuffer seg = segment(pos).duplicate();
+			int n = Math.min(length, seg.capacity() - idx);
+			seg.position(idx);
+			seg.get(buf, offset, n);
+			pos += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException {
+		if(fileOffset >= this.size)
+			return -1;
+		size = (int) Math.min(size, this.size - fileOffset);
+		int total = 0;
+		while(total < size)
+		{
+			//absolute positioning on a duplicate, shared segment state is never changed
+			int idx = index(fileOffset);
+			ByteBuffer seg = segment(fileOffset).duplicate();
+			int n = Math.min(size - total, seg.capacity() - idx);
+			seg.position(idx);
+			seg.get(data, dataOffset + total, n);
+			fileOffset += n;
+			total += n;
+		}
+		return total;
+	}
+
+}
@@ -3,20 +3,41 @@ package ru.biosoft.bigbed;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class RAFDataSource implements DataSource {
 
 	private RandomAccessFile file;
+	//Used for positional reads (pread), separate from @file, so it can be reopened:
+	//interrupt of a thread reading FileChannel closes the channel for all threads
+	private volatile FileChannel channel;
+	private volatile boolean closed;
+	private String source;
 	
 	@Override
 	public void open(String source) throws IOException {
+		this.source = source;
 		file = new RandomAccessFile(source, "r");
+		channel = openChannel();
+	}
+	
+	private FileChannel openChannel() throws IOException {
+		return FileChannel.open(Paths.get(source), StandardOpenOption.READ);
 	}
 
 	@Override
 	public void close() throws IOException {
-		file.close();
+		closed = true;
+		try {
+			file.close();
+		} finally {
+			channel.close();
+		}
 	}
 
 	@Override
@@ -106,6 +127,38 @@ public class RAFDataSource implements DataSource {
 	public void readFully(byte[] buf, int offset, int length) throws IOException {
 		file.readFully(buf, offset, length);
 	}
+	
+	//Survives interrupts: if the channel was closed by interrupt of this or another thread, it is reopened and the read is retried
+	//with interrupt status cleared, the status is restored afterwards
+	@Override
+	public int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException {
+		boolean interrupted = false;
+		try {
+			while(true)
+			{
+				FileChannel ch = channel;
+				try {
+					return ch.read(ByteBuffer.wrap(data, dataOffset, size), fileOffset);
+				} catch(ClosedChannelException e) {//also ClosedByInterruptException and AsynchronousCloseException
+					if(closed)
+						throw e;
+					interrupted |= Thread.interrupted();
+					reopen(ch);
+				}
+			}
+		} finally {
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Replace @old channel unless other thread already did it
+	private synchronized void reopen(FileChannel old) throws IOException {
+		if(closed)
+			throw new ClosedChannelException();
+		if(channel == old)
+			channel = openChannel();
+	}
 
 
 
@@ -1,12 +1,18 @@
 package ru.biosoft.bigbed;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Consumer;
 
 public class RTreeIndex {
 	public static int MAGIC = 0x2468ACE0;
 	public static int HEADER_SIZE = 48;
+	static final int NODE_HEADER_SIZE = 4;
+	static final int NODE_ITEM_SIZE = 24;
+	static final int LEAF_ITEM_SIZE = 32;
 
 	// Fields in file
 	int magic;
@@ -21,73 +27,267 @@ public class RTreeIndex {
 	/////
 
 	long rootOffset;
+	
+	//Upper levels of the tree loaded into memory by pin(), null if nothing is pinned
+	private PinnedLevel[] pinned;
+	
+	//All nodes of one tree level stored as struct of arrays
+	//Items of node i are [firstItem[i], firstItem[i+1]), child node of item j is node j of the next level
+	static class PinnedLevel
+	{
+		boolean leaf;
+		int[] firstItem;
+		int[] startChromIx, startBase, endChromIx, endBase;
+		long[] offset;//child node offset for non-leaf level, block offset for leaf level
+		long[] size;//block size, only for leaf level
+	}
 
 	public void read(DataSource d, long position) throws IOException {
-		d.seek(position);
-		magic = d.readInt();
+		byte[] buf = new byte[HEADER_SIZE];
+		d.readFully(position, buf, 0, HEADER_SIZE);
+		ByteBuffer b = ByteBuffer.wrap(buf).order(d.order());
+		magic = b.getInt();
 		if (magic != MAGIC)
 			throw new ParseException("Not Rtree format, magic bytes 0x" + Integer.toHexString(magic));
-		blockSize = d.readUInt();
-		itemCount = d.readULong();
-		startChromIdx = d.readUInt();
-		startBase = d.readUInt();
-		endChromIdx = d.readUInt();
-		endBase = d.readUInt();
-		fileSize = d.readULong();
-		itemsPerSlot = d.readUInt();
+		blockSize = Utils.readUInt(b);
+		itemCount = Utils.readULong(b);
+		startChromIdx = Utils.readUInt(b);
+		startBase = Utils.readUInt(b);
+		endChromIdx = Utils.readUInt(b);
+		endBase = Utils.readUInt(b);
+		fileSize = Utils.readULong(b);
+		itemsPerSlot = Utils.readUInt(b);
 
 		// Skip reserved
-		d.readInt();
+		b.getInt();
 
 		rootOffset = position + HEADER_SIZE;
 	}
 	
+	//Read node header and all node items with positional reads, the result is positioned at the first item
+	static ByteBuffer readNode(DataSource d, long fileOffset) throws IOException {
+		byte[] header = new byte[NODE_HEADER_SIZE];
+		d.readFully(fileOffset, header, 0, NODE_HEADER_SIZE);
+		boolean isLeaf = header[0] == 1;
+		int childCount = ByteBuffer.wrap(header).order(d.order()).getShort(2) & 0xffff;
+		int itemSize = isLeaf ? LEAF_ITEM_SIZE : NODE_ITEM_SIZE;
+		byte[] buf = new byte[NODE_HEADER_SIZE + childCount * itemSize];
+		System.arraycopy(header, 0, buf, 0, NODE_HEADER_SIZE);
+		d.readFully(fileOffset + NODE_HEADER_SIZE, buf, NODE_HEADER_SIZE, buf.length - NODE_HEADER_SIZE);
+		return ByteBuffer.wrap(buf).order(d.order());
+	}
+	
+	//Load all non-leaf levels of the tree into memory, leaf level is loaded only when @pinLeaves is set
+	//Should be called before the index is shared between threads
+	public void pin(DataSource d, boolean pinLeaves) throws IOException {
+		if(itemCount == 0)
+			return;
+		List<PinnedLevel> levels = new ArrayList<>();
+		long[] nodeOffsets = {rootOffset};
+		while(nodeOffsets.length > 0)
+		{
+			ByteBuffer[] nodes = new ByteBuffer[nodeOffsets.length];
+			int levelItemCount = 0;
+			for(int i = 0; i < nodes.length; i++)
+			{
+				nodes[i] = readNode(d, nodeOffsets[i]);
+				levelItemCount += nodes[i].getShort(2) & 0xffff;
+			}
+			boolean leaf = nodes[0].get(0) == 1;
+			if(leaf && !pinLeaves)
+				break;
+			
+			PinnedLevel level = new PinnedLevel();
+			level.leaf = leaf;
+			level.firstItem = new int[nodes.length + 1];
+			level.startChromIx = new int[levelItemCount];
+			level.startBase = new int[levelItemCount];
+			level.endChromIx = new int[levelItemCount];
+			level.endBase = new int[levelItemCount];
+			level.offset = new long[levelItemCount];
+			if(leaf)
+				level.size = new long[levelItemCount];
+			int j = 0;
+			for(int i = 0; i < nodes.length; i++)
+			{
+				ByteBuffer b = nodes[i];
+				level.firstItem[i] = j;
+				b.get();//isLeaf
+				b.get();//reserved
+				int childCount = Short.toUnsignedInt(b.getShort());
+				for(int k = 0; k < childCount; k++, j++)
+				{
+					level.startChromIx[j] = Utils.readUInt(b);
+					level.startBase[j] = Utils.readUInt(b);
+					level.endChromIx[j] = Utils.readUInt(b);
+					level.endBase[j] = Utils.readUInt(b);
+					level.offset[j] = Utils.readULong(b);
+					if(leaf)
+						level.size[j] = Utils.readULong(b);
+				}
+			}
+			level.firstItem[nodes.length] = j;
+			levels.add(level);
+			
+			nodeOffsets = leaf ? new long[0] : level.offset;
+		}
+		pinned = levels.isEmpty() ? null : levels.toArray(new PinnedLevel[0]);
+	}
+	
+	public int getPinnedLevelCount() {
+		return pinned == null ? 0 : pinned.length;
+	}
+	
 	public void findOverlappingBlocks(int chrId, int start, int end, DataSource d, Consumer<OffsetSize> result) throws IOException {
-		findOverlappingBlocks(rootOffset, chrId, start, end, d, result);
+		findOverlappingLeaves(chrId, start, end, d, leaf -> result.accept(new OffsetSize(leaf.offset, leaf.size)));
 	}
-
+	
 	public void findOverlappingBlocks(long fileOffset, int chrId, int start, int end, DataSource d, Consumer<OffsetSize> result) throws IOException {
-		d.seek(fileOffset);
-		byte isLeaf = d.readByte();
-		byte reserved = d.readByte();
-		int childCount = d.readUShortAsInt();
+		findOverlappingLeaves(fileOffset, chrId, start, end, d, leaf -> result.accept(new OffsetSize(leaf.offset, leaf.size)));
+	}
+	
+	//Same as findOverlappingBlocks, but also gives bounding box of every block
+	public void findOverlappingLeaves(int chrId, int start, int end, DataSource d, Consumer<LeafNode> result) throws IOException {
+		if(itemCount == 0)
+			return;//empty tree has no root node
+		if(pinned != null)
+			findOverlappingLeavesPinned(0, 0, chrId, start, end, d, result);
+		else
+			findOverlappingLeaves(rootOffset, chrId, start, end, d, result);
+	}
+	
+	private void findOverlappingLeavesPinned(int levelIdx, int node, int chrId, int start, int end, DataSource d, Consumer<LeafNode> result) throws IOException {
+		PinnedLevel level = pinned[levelIdx];
+		for(int i = level.firstItem[node]; i < level.firstItem[node+1]; i++)
+		{
+			if (!cirTreeOverlaps(chrId, start, end, level.startChromIx[i], level.startBase[i], level.endChromIx[i], level.endBase[i]))
+				continue;
+			if(level.leaf)
+			{
+				LeafNode leaf = new LeafNode();
+				leaf.startChromIdx = level.startChromIx[i];
+				leaf.startBase = level.startBase[i];
+				leaf.endChromIdx = level.endChromIx[i];
+				leaf.endBase = level.endBase[i];
+				leaf.offset = level.offset[i];
+				leaf.size = level.size[i];
+				result.accept(leaf);
+			}
+			else if(levelIdx + 1 < pinned.length)
+				findOverlappingLeavesPinned(levelIdx + 1, i, chrId, start, end, d, result);
+			else
+				findOverlappingLeaves(level.offset[i], chrId, start, end, d, result);
+		}
+	}
+
+	private void findOverlappingLeaves(long fileOffset, int chrId, int start, int end, DataSource d, Consumer<LeafNode> result) throws IOException {
+		ByteBuffer b = readNode(d, fileOffset);
+		byte isLeaf = b.get();
+		byte reserved = b.get();
+		int childCount = Short.toUnsignedInt(b.getShort());
 		
 		if (isLeaf == 1) {
 			for (int i = 0; i < childCount; ++i) {
-				int startChromIx = d.readUInt();
-				int startBase = d.readUInt();
-				int endChromIx = d.readUInt();
-				int endBase = d.readUInt();
-				long offset = d.readULong();
-				long size = d.readULong();
-				if (cirTreeOverlaps(chrId, start, end, startChromIx, startBase, endChromIx, endBase)) {
-					OffsetSize os = new OffsetSize(offset, size);
-					result.accept(os);
-				}
+				LeafNode leaf = new LeafNode();
+				leaf.startChromIdx = Utils.readUInt(b);
+				leaf.startBase = Utils.readUInt(b);
+				leaf.endChromIdx = Utils.readUInt(b);
+				leaf.endBase = Utils.readUInt(b);
+				leaf.offset = Utils.readULong(b);
+				leaf.size = Utils.readULong(b);
+				if (cirTreeOverlaps(chrId, start, end, leaf.startChromIdx, leaf.startBase, leaf.endChromIdx, leaf.endBase))
+					result.accept(leaf);
 			}
 		}
 		else
 		{
-			/* Read node into arrays. */
-			int[] startChromIx = new int[childCount];
-			int[] startBase = new int[childCount];
-			int[] endChromIx = new int[childCount];
-			int[] endBase = new int[childCount];
-			long[] offset = new long[childCount];
+			/* Node is already in memory, recurse into child nodes that we overlap. */
 			for (int i = 0; i < childCount; ++i) {
-				startChromIx[i] = d.readUInt();
-				startBase[i] = d.readUInt();
-				endChromIx[i] = d.readUInt();
-				endBase[i] = d.readUInt();
-				offset[i] = d.readULong();
+				int startChromIx = Utils.readUInt(b);
+				int startBase = Utils.readUInt(b);
+				int endChromIx = Utils.readUInt(b);
+				int endBase = Utils.readUInt(b);
+				long offset = Utils.readULong(b);
+				if (cirTreeOverlaps(chrId, start, end, startChromIx, startBase, endChromIx, endBase))
+					findOverlappingLeaves(offset, chrId, start, end, d, result);
 			}
 
-			/* Recurse into child nodes that we overlap. */
-			for (int i = 0; i < childCount; ++i) {
-				if (cirTreeOverlaps(chrId, start, end, startChromIx[i], startBase[i], endChromIx[i], endBase[i]))
-					findOverlappingBlocks(offset[i], chrId, start, end, d, result);
+		}
+	}
+	
+	interface MultiRegionConsumer {
+		//@regions are indices of regions overlapping the block
+		void accept(OffsetSize block, int[] regions);
+	}
+	
+	//Find blocks for many regions given by parallel arrays sorted by (chrId, start) in single tree sweep,
+	//each node is visited once and checked only against the regions overlapping its parent
+	void findOverlappingBlocks(int[] chrIds, int[] starts, int[] ends, DataSource d, MultiRegionConsumer result) throws IOException {
+		if(itemCount == 0 || chrIds.length == 0)
+			return;
+		int[] all = new int[chrIds.length];
+		for(int i = 0; i < all.length; i++)
+			all[i] = i;
+		if(pinned != null)
+			findOverlappingBlocksPinned(0, 0, all, chrIds, starts, ends, d, result);
+		else
+			findOverlappingBlocks(rootOffset, all, chrIds, starts, ends, d, result);
+	}
+	
+	//Subset of @regions overlapping given bounding box, null if empty
+	private static int[] overlapping(int[] regions, int[] chrIds, int[] starts, int[] ends, int startChromIx, int startBase, int endChromIx, int endBase) {
+		int[] res = null;
+		int n = 0;
+		for(int r : regions)
+		{
+			//regions are sorted by start, so the rest of them start after the box
+			if(cmpTwoBits32(chrIds[r], starts[r], endChromIx, endBase) <= 0)
+				break;
+			if(cmpTwoBits32(chrIds[r], ends[r], startChromIx, startBase) < 0)
+			{
+				if(res == null)
+					res = new int[regions.length];
+				res[n++] = r;
 			}
-
+		}
+		return res == null ? null : n == res.length ? res : Arrays.copyOf(res, n);
+	}
+	
+	private void findOverlappingBlocksPinned(int levelIdx, int node, int[] regions, int[] chrIds, int[] starts, int[] ends, DataSource d, MultiRegionConsumer result) throws IOException {
+		PinnedLevel level = pinned[levelIdx];
+		for(int i = level.firstItem[node]; i < level.firstItem[node+1]; i++)
+		{
+			int[] sub = overlapping(regions, chrIds, starts, ends, level.startChromIx[i], level.startBase[i], level.endChromIx[i], level.endBase[i]);
+			if(sub == null)
+				continue;
+			if(level.leaf)
+				result.accept(new OffsetSize(level.offset[i], level.size[i]), sub);
+			else if(levelIdx + 1 < pinned.length)
+				findOverlappingBlocksPinned(levelIdx + 1, i, sub, chrIds, starts, ends, d, result);
+			else
+				findOverlappingBlocks(level.offset[i], sub, chrIds, starts, ends, d, result);
+		}
+	}
+	
+	private void findOverlappingBlocks(long fileOffset, int[] regions, int[] chrIds, int[] starts, int[] ends, DataSource d, MultiRegionConsumer result) throws IOException {
+		ByteBuffer b = readNode(d, fileOffset);
+		boolean isLeaf = b.get() == 1;
+		b.get();//reserved
+		int childCount = Short.toUnsignedInt(b.getShort());
+		for (int i = 0; i < childCount; ++i) {
+			int startChromIx = Utils.readUInt(b);
+			int startBase = Utils.readUInt(b);
+			int endChromIx = Utils.readUInt(b);
+			int endBase = Utils.readUInt(b);
+			long offset = Utils.readULong(b);
+			long size = isLeaf ? Utils.readULong(b) : 0;
+			int[] sub = overlapping(regions, chrIds, starts, ends, startChromIx, startBase, endChromIx, endBase);
+			if(sub == null)
+				continue;
+			if(isLeaf)
+				result.accept(new OffsetSize(offset, size), sub);
+			else
+				findOverlappingBlocks(offset, sub, chrIds, starts, ends, d, result);
 		}
 	}
 	
@@ -99,40 +299,57 @@ public class RTreeIndex {
 	
 	public void traverseAllLeafs(DataSource d, Consumer<LeafNode> result) throws IOException
 	{
-		traverseAllLeafs(rootOffset, d, result);
+		if(itemCount == 0)
+			return;
+		if(pinned == null)
+		{
+			traverseAllLeafs(rootOffset, d, result);
+			return;
+		}
+		//items of the last pinned level are ordered as in depth first traversal
+		PinnedLevel level = pinned[pinned.length - 1];
+		for(int i = 0; i < level.offset.length; i++)
+		{
+			if(level.leaf)
+			{
+				LeafNode node = new LeafNode();
+				node.startChromIdx = level.startChromIx[i];
+				node.startBase = level.startBase[i];
+				node.endChromIdx = level.endChromIx[i];
+				node.endBase = level.endBase[i];
+				node.offset = level.offset[i];
+				node.size = level.size[i];
+				result.accept(node);
+			}
+			else
+				traverseAllLeafs(level.offset[i], d, result);
+		}
 	}
 	private void traverseAllLeafs(long fileOffset, DataSource d, Consumer<LeafNode> result) throws IOException
 	{
-		d.seek(fileOffset);
-		byte isLeaf = d.readByte();
-		byte reserved = d.readByte();
-		int childCount = d.readUShortAsInt();
+		ByteBuffer b = readNode(d, fileOffset);
+		byte isLeaf = b.get();
+		byte reserved = b.get();
+		int childCount = Short.toUnsignedInt(b.getShort());
 		
 		if (isLeaf == 1) {
 			for (int i = 0; i < childCount; ++i) {
 				LeafNode node = new LeafNode();
-				node.startChromIdx = d.readUInt();
-				node.startBase = d.readUInt();
-				node.endChromIdx = d.readUInt();
-				node.endBase = d.readUInt();
-				node.offset = d.readULong();
-				node.size = d.readULong();
+				node.startChromIdx = Utils.readUInt(b);
+				node.startBase = Utils.readUInt(b);
+				node.endChromIdx = Utils.readUInt(b);
+				node.endBase = Utils.readUInt(b);
+				node.offset = Utils.readULong(b);
+				node.size = Utils.readULong(b);
 				result.accept(node);
 			}
 		}
 		else
 		{
-			long[] offset = new long[childCount];
-			for (int i = 0; i < childCount; ++i) {
-				int startChromIdx = d.readUInt();
-				int startBase = d.readUInt();
-				int endChromIdx = d.readUInt();
-				int endBase = d.readUInt();
-				long childOffset = d.readULong();
-				offset[i] = childOffset;
-			}
 			for (int i = 0; i < childCount; ++i) {
-				traverseAllLeafs(offset[i], d, result);
+				b.position(b.position() + 16);//skip startChromIdx, startBase, endChromIdx, endBase
+				long childOffset = Utils.readULong(b);
+				traverseAllLeafs(childOffset, d, result);
 			}
 		}
 	}
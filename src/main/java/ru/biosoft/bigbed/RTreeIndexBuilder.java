@@ -22,7 +22,7 @@ public class RTreeIndexBuilder {
 			Block range = blocks.get(i);
 			RTreeNode node = new RTreeNode();
 			node.startChromIx = range.chrId;
-			node.endChromIx = range.chrEnd;
+			node.endChromIx = range.chrId;//block contains sites of single chromosome
 			node.startBase = range.chrStart;
 			node.endBase = range.chrEnd;
 			node.startFileOffset = range.offsetInFile;
@@ -50,6 +50,10 @@ public class RTreeIndexBuilder {
 				{
 					slotsUsed = 1;
 					parent = new RTreeNode();
+					parent.startChromIx = node.startChromIx;
+					parent.startBase = node.startBase;
+					parent.endChromIx = node.endChromIx;
+					parent.endBase = node.endBase;
 					parent.children = node;
 					node.parent = parent;
 					node.next = null;
@@ -1,7 +1,6 @@
 package ru.biosoft.bigbed;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 import ru.biosoft.bigbed.RTreeIndexBuilder.RTree;
 
@@ -12,7 +11,7 @@ public class RTreeIndexWriter {
 	private static final int leafSlotSize = 32;
 
 
-	public static void writeRTree(RTree rTree, RandomAccessFile out) throws IOException {
+	public static void writeRTree(RTree rTree, BufferedFileOutput out) throws IOException {
 		long indexOffset = out.getFilePointer();
 		out.writeInt(RTreeIndex.MAGIC);
 		out.writeInt(rTree.blockSize);
@@ -66,12 +65,12 @@ public class RTreeIndexWriter {
 	}
 
 	private static void writeLeaves(int itemsPerSlot, int lNodeSize, RTreeNode root, int leafLevel,
-			RandomAccessFile out) throws IOException {
+			BufferedFileOutput out) throws IOException {
 		rWriteLeaves(itemsPerSlot, lNodeSize, root, 0, leafLevel, out);
 	}
 	
 	private static void rWriteLeaves(int itemsPerSlot, int lNodeSize, RTreeNode root, int curLevel, int leafLevel,
-			RandomAccessFile out) throws IOException {
+			BufferedFileOutput out) throws IOException {
 		if (curLevel == leafLevel) {
 			/* We've reached the right level, write out a node header. */
 			byte reserved = 0;
@@ -93,7 +92,7 @@ public class RTreeIndexWriter {
 			}
 
 			/* Write out zeroes for empty slots in node. */
-			Utils.writeNBytes(out, (byte) 0, indexSlotSize * (itemsPerSlot - countOne));
+			Utils.writeNBytes(out, (byte) 0, leafSlotSize * (itemsPerSlot - countOne));
 		} else {
 			/* Otherwise recurse on children. */
 			for (RTreeNode el = root.children; el != null; el = el.next)
@@ -103,7 +102,7 @@ public class RTreeIndexWriter {
 	}
 
 	private static void writeIndexLevel(int blockSize, long childNodeSize, RTreeNode root, long offsetOfFirstChild,
-			int level, RandomAccessFile out) throws IOException {
+			int level, BufferedFileOutput out) throws IOException {
 		rWriteIndexLevel(blockSize, childNodeSize, root, 0, level, offsetOfFirstChild, out);
 	}
 
@@ -112,7 +111,7 @@ public class RTreeIndexWriter {
 	 * out destLevel.
 	 */
 	private static long rWriteIndexLevel(int blockSize, long childNodeSize, RTreeNode root, int curLevel, int destLevel,
-			long offsetOfFirstChild, RandomAccessFile out) throws IOException {
+			long offsetOfFirstChild, BufferedFileOutput out) throws IOException {
 
 		long offset = offsetOfFirstChild;
 		if (curLevel == destLevel) {
@@ -0,0 +1,8 @@
+package ru.biosoft.bigbed;
+
+//Callback for visitor style queries
+//The record passed to visit() is reused and is valid only during the call, use toBedEntry()/toWigEntry() to keep it
+public interface RecordVisitor<R> {
+	//return false to stop the query
+	boolean visit(R record);
+}
@@ -0,0 +1,21 @@
+package ru.biosoft.bigbed;
+
+//Genomic interval for multi region queries
+public class Region {
+	public String chrom;
+	public int start;
+	public int end;
+	
+	public Region() {}
+	
+	public Region(String chrom, int start, int end) {
+		this.chrom = chrom;
+		this.start = start;
+		this.end = end;
+	}
+	
+	@Override
+	public String toString() {
+		return chrom + ":" + start + "-" + end;
+	}
+}
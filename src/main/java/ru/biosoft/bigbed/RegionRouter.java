@@ -0,0 +1,62 @@
+package ru.biosoft.bigbed;
+
+import java.util.List;
+
+//Distributes records of a block among the regions of a multi-region query, see BigFile.queryIntervals(List, int)
+//Regions are sorted by (chromId, start) and records of a block come in the same order,
+//so regions ending before the current record are never checked again
+class RegionRouter<T> {
+	private final int[] chromIds, starts, ends;
+	private final List<List<T>> results;//indexed like regions
+	private final int maxItems;
+
+	private int[] regions;//regions overlapping the current block
+	private int lo;//first region in @regions that may overlap the current or later records
+	private final int[] matched;
+	private int nMatched;
+
+	RegionRouter(int[] chromIds, int[] starts, int[] ends, List<List<T>> results, int maxItems) {
+		this.chromIds = chromIds;
+		this.starts = starts;
+		this.ends = ends;
+		this.results = results;
+		this.maxItems = maxItems;
+		this.matched = new int[chromIds.length];
+	}
+
+	void startBlock(int[] blockRegions) {
+		regions = blockRegions;
+		lo = 0;
+		nMatched = 0;
+	}
+
+	//Number of not yet filled regions overlapped by the record, use target() to get their result lists
+	int match(int chromId, int start, int end) {
+		nMatched = 0;
+		while(lo < regions.length && (chromIds[regions[lo]] < chromId || (chromIds[regions[lo]] == chromId && ends[regions[lo]] < start)))
+			lo++;
+		for(int k = lo; k < regions.length; k++)
+		{
+			int r = regions[k];
+			if(chromIds[r] > chromId || (chromIds[r] == chromId && starts[r] > end))
+				break;
+			if(chromIds[r] != chromId)
+				continue;
+			if( ( (start < ends[r] && end > starts[r])
+					// Make sure to include zero-length insertion elements at start or end:
+					|| (start == end && (start == ends[r] || end == starts[r])) )
+				&& (maxItems <= 0 || results.get(r).size() < maxItems) )
+				matched[nMatched++] = r;
+		}
+		return nMatched;
+	}
+
+	List<T> target(int i) {
+		return results.get(matched[i]);
+	}
+
+	//No region of the current block can get more records
+	boolean isDone() {
+		return lo >= regions.length;
+	}
+}
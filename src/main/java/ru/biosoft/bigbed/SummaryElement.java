@@ -33,6 +33,7 @@ public class SummaryElement {
 	
 	public void compute(Iterator<BedEntry> sites)
 	{
+		initValues();
 		int curChr = 0;
 		List<Integer> x = new ArrayList<>();
 		while(sites.hasNext())
@@ -48,11 +49,10 @@ public class SummaryElement {
 			x.add(-((e.end+1)));//negative sign means reduce coverage at this position
 		}
 		
-		initValues();
 		makeSummaryFromChangePoints(x);//process last chrom
 	}
 
-	private void initValues() {
+	void initValues() {
 		this.validCount = 0;
 		this.minVal = Double.MAX_VALUE;
 		this.maxVal = -Double.MAX_VALUE;
@@ -75,7 +75,7 @@ public class SummaryElement {
 			intervalStart = Math.abs(p);
 			while(i < points.size() && Math.abs(points.get(i)) == Math.abs(p))
 			{
-				if(p>0)
+				if(points.get(i)>0)
 					val++;
 				else
 					val--;
@@ -87,14 +87,15 @@ public class SummaryElement {
 		
 	}
 
-	private void addSummary(int length, int coverage) {
+	//Add @length bases with value @val
+	void addSummary(int length, double val) {
 		validCount += length;
-		if(coverage < minVal)
-			minVal = coverage;
-		if(coverage > maxVal)
-			maxVal = coverage;
-		sum += ((double)length) * coverage;
-		sumSq += ((double)length) * coverage * coverage;
+		if(val < minVal)
+			minVal = val;
+		if(val > maxVal)
+			maxVal = val;
+		sum += ((double)length) * val;
+		sumSq += ((double)length) * val * val;
 	}
 
 }
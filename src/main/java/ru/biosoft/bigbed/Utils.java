@@ -36,15 +36,15 @@ public class Utils {
 	}
 
 	
+	//Inflater and Deflater hold native zlib memory that is released only by end() or GC,
+	//so they are kept per thread and reused for all blocks instead of being created per block
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+	private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[Deflater.BEST_COMPRESSION + 2]);
+	private static final ThreadLocal<byte[][]> COMPRESS_BUF = ThreadLocal.withInitial(() -> new byte[1][0]);
+	
 	public static int uncompress(byte[] compressed, int compressedOffset, int compressedLength, byte[] uncompressedBuf) throws IOException {
-		/*InflaterInputStream z = new InflaterInputStream(new ByteArrayInputStream(buf, bufStart, bufLength));
-		int n = 0;
-		int total = 0;
-		while((n = z.read(uncompressedBuf, total, uncompressedBuf.length-total)) > 0)
-			total += n;
-		return total;
-		*/
-		Inflater inflater = new Inflater();
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
         inflater.setInput( compressed, compressedOffset, compressedLength );
         int uncompressedLen;
 		try {
@@ -57,29 +57,71 @@ public class Utils {
         return uncompressedLen;
 	}
 	
-	public static byte[] compress(byte[] input) {
-		 byte[] output = new byte[input.length];
-		 Deflater compresser = new Deflater();
-		 compresser.setInput(input);
-		 compresser.finish();
-		 int compressedDataLength = 0;
-		 while(!compresser.finished())
-		 {
-			 compressedDataLength += compresser.deflate(output, compressedDataLength, output.length-compressedDataLength);
-			 if(compressedDataLength >= output.length)
-				 output = Arrays.copyOf(output, output.length*2+1);
-		 }
-		 compresser.end();
-		 if(output.length != compressedDataLength)
-			 output = Arrays.copyOf(output, compressedDataLength);
+	private static Deflater getDeflater(int level) {
+		if(level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level " + level);
+		Deflater[] deflaters = DEFLATERS.get();
+		Deflater res = deflaters[level + 1];
+		if(res == null)
+			res = deflaters[level + 1] = new Deflater(level);
+		else
+			res.reset();
+		return res;
+	}
+	
+	//Compress into per thread buffer, returns the buffer, compressed data length is stored to @length[0]
+	private static byte[] compressToBuffer(byte[] input, int offset, int length, int level, int[] compressedLength) {
+		Deflater deflater = getDeflater(level);
+		deflater.setInput(input, offset, length);
+		deflater.finish();
+		byte[][] holder = COMPRESS_BUF.get();
+		//zlib compressBound, normally whole block is deflated with single call
+		int bound = length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+		if(holder[0].length < bound)
+			holder[0] = new byte[bound];
+		byte[] output = holder[0];
+		int n = 0;
+		while(!deflater.finished())
+		{
+			if(n == output.length)
+				output = holder[0] = Arrays.copyOf(output, output.length*2);
+			n += deflater.deflate(output, n, output.length - n);
+		}
+		compressedLength[0] = n;
 		return output;
 	}
 	
+	public static byte[] compress(byte[] input) {
+		return compress(input, 0, input.length, Deflater.DEFAULT_COMPRESSION);
+	}
+	
+	public static byte[] compress(byte[] input, int offset, int length, int level) {
+		int[] n = new int[1];
+		byte[] output = compressToBuffer(input, offset, length, level, n);
+		return Arrays.copyOf(output, n[0]);
+	}
+	
+	//Compress and write to @out without intermediate allocations, returns compressed length
+	public static int compress(byte[] input, int offset, int length, int level, DataOutput out) throws IOException {
+		int[] n = new int[1];
+		byte[] output = compressToBuffer(input, offset, length, level, n);
+		out.write(output, 0, n[0]);
+		return n[0];
+	}
+	
 	
 	public static void writeNBytes(DataOutput out, byte val, int n) throws IOException
 	{
-		for (int k = 0; k < n; k++)
-			out.writeByte(val);
+		if(out instanceof BufferedFileOutput)
+		{
+			((BufferedFileOutput)out).writeNBytes(val, n);
+			return;
+		}
+		byte[] chunk = new byte[Math.min(n, 4096)];
+		if(val != 0)
+			Arrays.fill(chunk, val);
+		for(int k = 0; k < n; k += chunk.length)
+			out.write(chunk, 0, Math.min(chunk.length, n - k));
 	}
 	
 }
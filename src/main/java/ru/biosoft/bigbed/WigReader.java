@@ -0,0 +1,182 @@
+package ru.biosoft.bigbed;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+//Streaming parser of wig (variableStep and fixedStep sections) and bedGraph text
+//Lines before the first section declaration are bedGraph, track, browser, comment and empty lines are skipped
+//IOException during iteration is thrown as UncheckedIOException, malformed input as ParseException
+public class WigReader implements Iterator<WigEntry>, Closeable {
+	private enum Mode { BED_GRAPH, VARIABLE_STEP, FIXED_STEP }
+	
+	private final BufferedReader reader;
+	private final ChromDictionary chroms;
+	private final String[] tokens = new String[8];
+	private int lineNumber;
+	
+	private Mode mode = Mode.BED_GRAPH;
+	private int chrId;
+	private int span;
+	private int step;
+	private int nextStart;//start of the next fixedStep item
+	
+	private WigEntry next;
+	
+	public WigReader(Reader reader, List<ChromInfo> chrs)
+	{
+		this.reader = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader);
+		this.chroms = new ChromDictionary(chrs);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(next == null)
+		{
+			try
+			{
+				next = readNext();
+			}
+			catch(IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public WigEntry next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		WigEntry res = next;
+		next = null;
+		return res;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	private WigEntry readNext() throws IOException
+	{
+		String line;
+		while((line = reader.readLine()) != null)
+		{
+			lineNumber++;
+			int n = tokenize(line);
+			if(n == 0 || tokens[0].startsWith("#") || tokens[0].equals("track") || tokens[0].equals("browser"))
+				continue;
+			try
+			{
+				if(tokens[0].equals("variableStep") || tokens[0].equals("fixedStep"))
+				{
+					parseDeclaration(n);
+					continue;
+				}
+				switch(mode)
+				{
+				case BED_GRAPH:
+					expectTokens(n, 4);
+					ChromInfo chr = getChrom(tokens[0]);
+					return new WigEntry(chr.id, Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]), Double.parseDouble(tokens[3]));
+				case VARIABLE_STEP:
+					expectTokens(n, 2);
+					int start = Integer.parseInt(tokens[0]) - 1;
+					return new WigEntry(chrId, start, start + span, Double.parseDouble(tokens[1]));
+				case FIXED_STEP:
+					expectTokens(n, 1);
+					WigEntry e = new WigEntry(chrId, nextStart, nextStart + span, Double.parseDouble(tokens[0]));
+					nextStart += step;
+					return e;
+				default:
+					throw new AssertionError();
+				}
+			}
+			catch(NumberFormatException e)
+			{
+				throw new ParseException("Invalid number at line " + lineNumber + ": " + line, e);
+			}
+		}
+		return null;
+	}
+	
+	//variableStep chrom=chrN [span=windowSize]
+	//fixedStep chrom=chrN start=position step=stepInterval [span=windowSize]
+	//positions are one based
+	private void parseDeclaration(int n)
+	{
+		mode = tokens[0].equals("variableStep") ? Mode.VARIABLE_STEP : Mode.FIXED_STEP;
+		String chrom = null;
+		int start = -1;
+		span = 1;
+		step = 1;
+		for(int i = 1; i < n; i++)
+		{
+			int eq = tokens[i].indexOf('=');
+			if(eq < 0)
+				throw new ParseException("Expecting key=value at line " + lineNumber + ": " + tokens[i]);
+			String key = tokens[i].substring(0, eq);
+			String value = tokens[i].substring(eq + 1);
+			switch(key)
+			{
+			case "chrom": chrom = value; break;
+			case "start": start = Integer.parseInt(value); break;
+			case "step": step = Integer.parseInt(value); break;
+			case "span": span = Integer.parseInt(value); break;
+			default:
+				throw new ParseException("Unknown parameter " + key + " at line " + lineNumber);
+			}
+		}
+		if(chrom == null)
+			throw new ParseException("Missing chrom at line " + lineNumber);
+		chrId = getChrom(chrom).id;
+		if(mode == Mode.FIXED_STEP)
+		{
+			if(start < 1)
+				throw new ParseException("Missing or invalid start at line " + lineNumber);
+			nextStart = start - 1;
+		}
+		if(span <= 0 || step <= 0)
+			throw new ParseException("Invalid span or step at line " + lineNumber);
+	}
+	
+	private ChromInfo getChrom(String name)
+	{
+		ChromInfo chr = chroms.get(name);
+		if(chr == null)
+			throw new ParseException("Unknown chromosome " + name + " at line " + lineNumber);
+		return chr;
+	}
+	
+	private void expectTokens(int n, int expected)
+	{
+		if(n != expected)
+			throw new ParseException("Expecting " + expected + " columns in " + mode + " data at line " + lineNumber + ", but got " + n);
+	}
+	
+	//Splits line by spaces and tabs into tokens, returns number of tokens (at most tokens.length)
+	private int tokenize(String line)
+	{
+		int n = 0;
+		int i = 0, len = line.length();
+		while(n < tokens.length)
+		{
+			while(i < len && (line.charAt(i) == ' ' || line.charAt(i) == '\t'))
+				i++;
+			if(i >= len)
+				break;
+			int start = i;
+			while(i < len && line.charAt(i) != ' ' && line.charAt(i) != '\t')
+				i++;
+			tokens[n++] = line.substring(start, i);
+		}
+		return n;
+	}
+}
@@ -0,0 +1,33 @@
+package ru.biosoft.bigbed;
+
+//Reusable view of one BigWig value, see RecordVisitor
+public class WigRecord {
+	int chrId;
+	int start, end;
+	float val;
+	
+	public int getChrId() {
+		return chrId;
+	}
+	
+	public int getStart() {
+		return start;
+	}
+	
+	public int getEnd() {
+		return end;
+	}
+	
+	public float getVal() {
+		return val;
+	}
+	
+	public WigEntry toWigEntry() {
+		return new WigEntry(chrId, start, end, val);
+	}
+	
+	@Override
+	public String toString() {
+		return "WigRecord [chrId=" + chrId + ", start=" + start + ", end=" + end + ", val=" + val + "]";
+	}
+}
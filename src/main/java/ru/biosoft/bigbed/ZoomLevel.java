@@ -1,5 +1,6 @@
 package ru.biosoft.bigbed;
 
+import java.io.DataOutput;
 import java.io.IOException;
 
 public class ZoomLevel {
@@ -7,6 +8,13 @@ public class ZoomLevel {
 	int reserved;
 	long dataOffset;
 	long indexOffset;
+	
+	volatile RTreeIndex rTree;//loaded on first use by BigFile.getZoomIndex
+
+	public int getReductionLevel()
+	{
+		return reductionLevel;
+	}
 
 	void read(DataSource b) throws IOException
 	{
@@ -15,4 +23,12 @@ public class ZoomLevel {
 	    dataOffset = b.readULong();
 	    indexOffset = b.readULong();
 	}
+	
+	void write(DataOutput out) throws IOException
+	{
+		out.writeInt(reductionLevel);
+		out.writeInt(reserved);
+		out.writeLong(dataOffset);
+		out.writeLong(indexOffset);
+	}
 }
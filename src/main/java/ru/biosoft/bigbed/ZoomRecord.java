@@ -0,0 +1,61 @@
+package ru.biosoft.bigbed;
+
+import java.nio.ByteBuffer;
+
+//Summary of data over [start, end) stored in zoom level, see RecordVisitor
+public class ZoomRecord {
+	public static final int SIZE = 32;
+	
+	int chromId;
+	int start, end;
+	long validCount;//number of bases with data
+	float minVal, maxVal, sum, sumSq;
+	
+	void read(ByteBuffer b) {
+		chromId = Utils.readUInt(b);
+		start = Utils.readUInt(b);
+		end = Utils.readUInt(b);
+		validCount = Integer.toUnsignedLong(b.getInt());
+		minVal = b.getFloat();
+		maxVal = b.getFloat();
+		sum = b.getFloat();
+		sumSq = b.getFloat();
+	}
+	
+	public int getChromId() {
+		return chromId;
+	}
+	
+	public int getStart() {
+		return start;
+	}
+	
+	public int getEnd() {
+		return end;
+	}
+	
+	public long getValidCount() {
+		return validCount;
+	}
+	
+	public float getMinVal() {
+		return minVal;
+	}
+	
+	public float getMaxVal() {
+		return maxVal;
+	}
+	
+	public float getSum() {
+		return sum;
+	}
+	
+	public float getSumSq() {
+		return sumSq;
+	}
+	
+	@Override
+	public String toString() {
+		return "ZoomRecord [chromId=" + chromId + ", start=" + start + ", end=" + end + ", validCount=" + validCount + "]";
+	}
+}
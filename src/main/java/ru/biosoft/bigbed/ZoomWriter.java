@@ -0,0 +1,233 @@
+package ru.biosoft.bigbed;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.biosoft.bigbed.RTreeIndexBuilder.RTree;
+
+//Builds zoom levels from runs of constant value (chrId, start, end, val) sorted by (chrId, start)
+//The first level summarizes runs over windows of @initialReduction bases aligned to multiples of the reduction,
+//each next level merges windows of the previous one by BigFile.ZOOM_INCREMENT
+//All levels are built in single pass keeping only the current window of each level in memory:
+//finished windows are passed to the next level and written as compressed zoom blocks to temporary file of their level,
+//which is copied to the output by write()
+class ZoomWriter implements Closeable {
+	private static final int TEMP_BUFFER_SIZE = 1 << 16;
+
+	//summary of single window, values are kept in double until written
+	private static class Summary
+	{
+		int chrId;
+		int start, end;
+		long validCount;
+		double minVal, maxVal, sum, sumSq;
+	}
+
+	private class Level
+	{
+		final int reduction;
+		Level next;
+		final Summary current = new Summary();
+		boolean hasCurrent;
+		long count;//finished windows
+		int maxUncompressedLength;
+
+		//created with the first finished window
+		File file;
+		BufferedFileOutput out;
+		BlockWriter blockWriter;
+		final List<Block> blocks = new ArrayList<>();
+		Block curBlock;
+
+		Level(int reduction)
+		{
+			this.reduction = reduction;
+		}
+
+		void add(int chrId, int start, int end, long validCount, double minVal, double maxVal, double sum, double sumSq) throws IOException
+		{
+			if(hasCurrent && (current.chrId != chrId || current.start / reduction != start / reduction))
+				finishWindow();
+			if(!hasCurrent)
+			{
+				current.chrId = chrId;
+				current.start = start;
+				current.end = 0;
+				current.validCount = 0;
+				current.minVal = minVal;
+				current.maxVal = maxVal;
+				current.sum = 0;
+				current.sumSq = 0;
+				hasCurrent = true;
+			}
+			current.end = Math.max(current.end, end);
+			current.validCount += validCount;
+			current.minVal = Math.min(current.minVal, minVal);
+			current.maxVal = Math.max(current.maxVal, maxVal);
+			current.sum += sum;
+			current.sumSq += sumSq;
+		}
+
+		//Windows of this level are aligned to its reduction, so they fit entirely into the windows of the next one
+		void finishWindow() throws IOException
+		{
+			hasCurrent = false;
+			Summary s = current;
+			writeSummary(s);
+			count++;
+			if(next != null)
+				next.add(s.chrId, s.start, s.end, s.validCount, s.minVal, s.maxVal, s.sum, s.sumSq);
+		}
+
+		private void writeSummary(Summary s) throws IOException
+		{
+			if(blockWriter == null)
+			{
+				file = File.createTempFile("zoom", ".tmp", options.tempDir);
+				out = new BufferedFileOutput(file, TEMP_BUFFER_SIZE);
+				blockWriter = new BlockWriter(out, options);
+			}
+			if(curBlock == null || curBlock.chrId != s.chrId || curBlock.siteCount >= options.itemsPerSlot)
+			{
+				if(curBlock != null)
+					blockWriter.finishBlock(curBlock);
+				curBlock = new Block();
+				curBlock.chrId = s.chrId;
+				curBlock.chrStart = s.start;
+				curBlock.siteOffset = (int)count;
+				blocks.add(curBlock);
+			}
+			curBlock.chrEnd = Math.max(curBlock.chrEnd, s.end);
+
+			DataOutputStream blockDataOut = blockWriter.data();
+			blockDataOut.writeInt(s.chrId);
+			blockDataOut.writeInt(s.start);
+			blockDataOut.writeInt(s.end);
+			blockDataOut.writeInt((int)s.validCount);
+			blockDataOut.writeFloat((float)s.minVal);
+			blockDataOut.writeFloat((float)s.maxVal);
+			blockDataOut.writeFloat((float)s.sum);
+			blockDataOut.writeFloat((float)s.sumSq);
+			curBlock.siteCount++;
+		}
+
+		//Writes the last block, blocks get offsets in the temporary file
+		void finish() throws IOException
+		{
+			if(hasCurrent)
+				finishWindow();
+			if(blockWriter == null)
+				return;
+			if(curBlock != null)
+				blockWriter.finishBlock(curBlock);
+			blockWriter.flush();
+			maxUncompressedLength = blockWriter.getMaxUncompressedLength();
+			out.close();
+		}
+
+		//Copies blocks from temporary file to @dst shifting their offsets
+		void copyBlocks(BufferedFileOutput dst) throws IOException
+		{
+			long base = dst.getFilePointer();
+			byte[] buf = new byte[TEMP_BUFFER_SIZE];
+			try(InputStream in = new FileInputStream(file))
+			{
+				int n;
+				while((n = in.read(buf)) > 0)
+					dst.write(buf, 0, n);
+			}
+			for(Block block : blocks)
+				block.offsetInFile += base;
+		}
+
+		void delete() throws IOException
+		{
+			if(blockWriter != null)
+				blockWriter.close();
+			if(out != null)
+				out.close();
+			if(file != null)
+				file.delete();
+		}
+	}
+
+	private final BigWriterOptions options;
+	private final List<Level> levels = new ArrayList<>();
+	private int maxUncompressedLength;//of zoom blocks written to the output
+
+	ZoomWriter(int initialReduction, BigWriterOptions options)
+	{
+		this.options = options;
+		long reduction = Math.max(1, initialReduction);
+		while(levels.size() < Math.min(options.zoomLevels, BigFile.MAX_ZOOM_LEVELS) && reduction <= Integer.MAX_VALUE)
+		{
+			Level level = new Level((int)reduction);
+			if(!levels.isEmpty())
+				levels.get(levels.size() - 1).next = level;
+			levels.add(level);
+			reduction *= BigFile.ZOOM_INCREMENT;
+		}
+	}
+
+	//Runs should not overlap and should come sorted by (chrId, start)
+	void addRun(int chrId, int start, int end, double val) throws IOException
+	{
+		Level first = levels.get(0);
+		int reduction = first.reduction;
+		while(start < end)
+		{
+			int windowEnd = (int)Math.min(end, ((long)start / reduction + 1) * reduction);
+			first.add(chrId, start, windowEnd, windowEnd - start, val, val, val * (windowEnd - start), val * val * (windowEnd - start));
+			start = windowEnd;
+		}
+	}
+
+	//Writes zoom data and indices for at most options.zoomLevels levels,
+	//stops when the next level would not have fewer records
+	List<ZoomLevel> write(BufferedFileOutput out) throws IOException
+	{
+		//levels are finished in order, as the last window of each level goes to the next one
+		for(Level level : levels)
+			level.finish();
+
+		List<ZoomLevel> result = new ArrayList<>();
+		long prevCount = Long.MAX_VALUE;
+		for(Level level : levels)
+		{
+			if(level.count == 0 || level.count >= prevCount)
+				break;
+			prevCount = level.count;
+			ZoomLevel zoom = new ZoomLevel();
+			zoom.reductionLevel = level.reduction;
+			zoom.dataOffset = out.getFilePointer();
+			out.writeInt((int)level.count);
+			level.copyBlocks(out);
+			zoom.indexOffset = out.getFilePointer();
+			RTree rTree = RTreeIndexBuilder.buildRTree(level.blocks, options.blockSize);
+			RTreeIndexWriter.writeRTree(rTree, out);
+			result.add(zoom);
+			maxUncompressedLength = Math.max(maxUncompressedLength, level.maxUncompressedLength);
+		}
+		return result;
+	}
+
+	//Largest uncompressed zoom block written so far
+	int getMaxUncompressedLength()
+	{
+		return maxUncompressedLength;
+	}
+
+	//Deletes temporary files
+	@Override
+	public void close() throws IOException
+	{
+		for(Level level : levels)
+			level.delete();
+	}
+}
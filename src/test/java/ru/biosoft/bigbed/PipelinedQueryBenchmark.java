@@ -0,0 +1,41 @@
+package ru.biosoft.bigbed;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Compares whole chromosome query with and without BigFileOptions.queryExecutor on the file of TestPipelinedQuery
+//Not a unit test, run with main()
+public class PipelinedQueryBenchmark {
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		TestPipelinedQuery.writeFile();
+		try {
+			BigBedFile serial = BigBedFile.read(TestPipelinedQuery.file.getPath());
+			BigFileOptions options = new BigFileOptions();
+			options.queryExecutor = pool;
+			BigBedFile pipelined = BigBedFile.read(TestPipelinedQuery.file.getPath(), options);
+
+			//warm up and measure
+			long serialTime = Long.MAX_VALUE, pipelinedTime = Long.MAX_VALUE;
+			for(int i = 0; i < 5; i++)
+			{
+				long t0 = System.nanoTime();
+				serial.queryIntervals("chr1", 0, TestPipelinedQuery.CHR_LENGTH, 0);
+				long t1 = System.nanoTime();
+				pipelined.queryIntervals("chr1", 0, TestPipelinedQuery.CHR_LENGTH, 0);
+				long t2 = System.nanoTime();
+				serialTime = Math.min(serialTime, t1 - t0);
+				pipelinedTime = Math.min(pipelinedTime, t2 - t1);
+			}
+			System.out.printf("Whole chromosome query of %d records: serial %d ms, pipelined %d ms on %d threads%n",
+					TestPipelinedQuery.SITE_COUNT, serialTime / 1000000, pipelinedTime / 1000000, threads);
+
+			serial.close();
+			pipelined.close();
+		} finally {
+			pool.shutdown();
+			TestPipelinedQuery.deleteFile();
+		}
+	}
+}
@@ -1,9 +1,14 @@
 package ru.biosoft.bigbed;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -86,4 +91,142 @@ public class Test1 {
 		
 		bw.close();
 	}
+	
+	@Test
+	public void testChromDictionary() throws Exception
+	{
+		BigBedFile bb = BigBedFile.read("test-data/extra-index/test.bb");
+		List<ChromInfo> chrList = new ArrayList<>();
+		bb.traverseChroms(chr->chrList.add(chr));
+		for(ChromInfo chr : chrList)
+		{
+			ChromInfo cached = bb.getChromInfo(chr.name);
+			assertEquals(chr.id, cached.id);
+			assertEquals(chr.length, cached.length);
+			assertSame(cached, bb.getChromInfo(chr.name));
+			assertSame(cached, bb.getChromInfo(chr.id));
+			assertEquals(chr.name, bb.getChromName(chr.id));
+		}
+		assertEquals(chrList.size(), bb.getChromDictionary().size());
+		assertNull(bb.getChromInfo("chrUnknown"));
+		assertNull(bb.getChromName(chrList.size()));
+		assertEquals(0, bb.queryIntervals("chrUnknown", 0, 1000, 0).size());
+		bb.close();
+	}
+
+	@Test
+	public void testVisitor() throws Exception
+	{
+		BigBedFile bb = BigBedFile.read("test-data/extra-index/test.bb");
+		List<BedEntry> expected = bb.queryIntervals("chr1", 0, 100000, 0);
+		List<BedEntry> visited = new ArrayList<>();
+		bb.queryIntervals("chr1", 0, 100000, rec -> {
+			BedEntry e = rec.toBedEntry();
+			assertEquals(rec.getRest(), e.getRest());
+			visited.add(e);
+			return true;
+		});
+		assertThat(visited, is(expected));
+		for(int i = 0; i < expected.size(); i++)
+			assertArrayEquals(expected.get(i).data, visited.get(i).data);
+		
+		int[] count = {0};
+		assertFalse(bb.queryIntervals("chr1", 0, 100000, rec -> ++count[0] < 1));
+		assertEquals(1, count[0]);
+		bb.close();
+		
+		BigWigFile bw = BigWigFile.read("test-data/test.bw");
+		List<WigEntry> expectedWig = bw.queryIntervals("chr1", 0, 10000, 0);
+		List<WigEntry> visitedWig = new ArrayList<>();
+		bw.queryIntervals("chr1", 0, 10000, rec -> visitedWig.add(rec.toWigEntry()));
+		assertThat(visitedWig, is(expectedWig));
+		bw.close();
+	}
+
+	@Test
+	public void testSectionPruning() throws Exception
+	{
+		//fixedStep and variableStep sections: 20 items starting at 100 with step 10 and span 5
+		for(int type : new int[] {2, 3})
+		{
+			ByteBuffer section = ByteBuffer.allocate(24 + 20 * 8);
+			section.putInt(0).putInt(100).putInt(295).putInt(10).putInt(5).put((byte)type).put((byte)0).putShort((short)20);
+			for(int i = 0; i < 20; i++)
+			{
+				if(type == 2)
+					section.putInt(100 + i * 10);
+				section.putFloat(i);
+			}
+			section.flip();
+			BigWigFile bw = new BigWigFile("test-data/test.bw");
+			for(int qStart = 80; qStart < 320; qStart += 3)
+				for(int qEnd = qStart; qEnd < 320; qEnd += 7)
+				{
+					List<WigEntry> expected = new ArrayList<>();
+					for(int i = 0; i < 20; i++)
+					{
+						int s = 100 + i * 10;
+						if(s < qEnd && qStart < s + 5)
+							expected.add(new WigEntry(0, s, s + 5, i));
+					}
+					List<WigEntry> res = new ArrayList<>();
+					bw.parseBlock(0, qStart, qEnd, 0, section.duplicate(), res);
+					assertThat(qStart + "-" + qEnd, res, is(expected));
+				}
+			List<WigEntry> res = new ArrayList<>();
+			bw.parseBlock(1, 0, 1000, 0, section.duplicate(), res);
+			assertEquals(0, res.size());
+		}
+	}
+
+	@Test
+	public void testZoomSummary() throws Exception
+	{
+		BigWigFile bw = BigWigFile.read("test-data/test.bw");
+		ZoomLevel zoom = bw.getZoomLevels().get(0);
+		assertSame(zoom, bw.getBestZoomLevel(zoom.getReductionLevel()));
+		assertNull(bw.getBestZoomLevel(zoom.getReductionLevel() - 1));
+		
+		//raw values
+		double count = 0, sum = 0, sumSq = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+		for(WigEntry e : bw.queryIntervals("chr1", 0, 10000, 0))
+		{
+			int len = e.end - e.start;
+			count += len;
+			sum += len * e.val;
+			sumSq += len * e.val * e.val;
+			min = Math.min(min, e.val);
+			max = Math.max(max, e.val);
+		}
+		SummaryElement[] raw = bw.summary("chr1", 0, 10000, 1);
+		assertEquals(count, raw[0].validCount, 0);
+		assertEquals(sum, raw[0].sum, 1e-6);
+		assertEquals(sumSq, raw[0].sumSq, 1e-6);
+		assertEquals(min, raw[0].minVal, 0);
+		assertEquals(max, raw[0].maxVal, 0);
+		
+		//whole chromosome is covered by zoom records
+		SummaryElement[] zoomed = bw.summary("chr1", 0, 100000000, 1);
+		assertEquals(count, zoomed[0].validCount, 0);
+		assertEquals(sum, zoomed[0].sum, 1e-3);
+		assertEquals(sumSq, zoomed[0].sumSq, 1e-3);
+		assertEquals(min, zoomed[0].minVal, 1e-6);
+		assertEquals(max, zoomed[0].maxVal, 1e-6);
+		
+		//bins split the values
+		SummaryElement[] bins = bw.summary("chr1", 0, 10000, 7);
+		double binCount = 0, binSum = 0;
+		for(SummaryElement e : bins)
+		{
+			binCount += e.validCount;
+			binSum += e.sum;
+		}
+		assertEquals(count, binCount, 0);
+		assertEquals(sum, binSum, 1e-6);
+		
+		SummaryElement[] empty = bw.summary("chrUnknown", 0, 1000, 2);
+		assertEquals(0, empty[1].validCount);
+		assertEquals(Double.NaN, empty[1].minVal, 0);
+		bw.close();
+	}
 }
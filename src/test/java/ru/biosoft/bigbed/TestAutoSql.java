@@ -1,6 +1,10 @@
 package ru.biosoft.bigbed;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.Test;
 
@@ -108,4 +112,55 @@ public class TestAutoSql {
 		AutoSql res = AutoSql.parse(str);
 		assertEquals(str, res.toString());
 	}
+
+	@Test
+	public void testBedFields() {
+		String str = "table test\n"
+				+ "\"typed fields\"\n"
+				+ "(\n"
+				+ "string chrom; \"Chr\"\n"
+				+ "uint chromStart; \"start\"\n"
+				+ "uint chromEnd; \"end\"\n"
+				+ "string name; \"Name\"\n"
+				+ "int score; \"Score\"\n"
+				+ "char[1] strand; \"Strand\"\n"
+				+ "double pValue; \"P-value\"\n"
+				+ "int blockCount; \"Number of blocks\"\n"
+				+ "int[blockCount] blockSizes; \"Block sizes\"\n"
+				+ "float[blockCount] blockScores; \"Block scores\"\n"
+				+ ")\n";
+		BedFields fields = new BedFields(AutoSql.parse(str));
+		byte[] rest = "gene1\t-42\t+\t0.125\t3\t10,20,30,\t1.5,2,-3e-2".getBytes();
+		byte[] data = new byte[rest.length + 4];
+		System.arraycopy(rest, 0, data, 2, rest.length);
+		fields.reset(data, 2, rest.length);
+		
+		//columns are accessed in any order
+		assertEquals(0.125, fields.getDouble(fields.getColumnIndex("pValue")), 0);
+		assertEquals("gene1", fields.getString(3));
+		assertEquals(-42, fields.getInt(4));
+		assertEquals(-42.0, fields.getDouble(4), 0);
+		assertEquals("+", fields.getString(5));
+		assertArrayEquals(new int[] {10, 20, 30}, fields.getIntArray(8));
+		assertArrayEquals(new double[] {1.5, 2, -0.03}, fields.getDoubleArray(9), 0);
+		assertTrue(fields.fieldEquals(3, "gene1".getBytes()));
+		assertFalse(fields.fieldEquals(3, "gene".getBytes()));
+		assertEquals(7, fields.getRestFieldCount());
+		
+		fields.reset("gene2\t7".getBytes(), 0, 7);
+		assertEquals(7, fields.getLong(4));
+		assertEquals(2, fields.getRestFieldCount());
+		try {
+			fields.getString(5);
+			fail();
+		} catch(ParseException e) {
+			//missing column
+		}
+		try {
+			fields.getInt(3);
+			fail();
+		} catch(IllegalArgumentException e) {
+			//string column
+		}
+	}
 }
@@ -0,0 +1,80 @@
+package ru.biosoft.bigbed;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestBlockCache {
+
+	@Test
+	public void testSharedCache() throws Exception {
+		LRUBlockCache cache = new LRUBlockCache(1 << 20);
+		BigFileOptions options = new BigFileOptions();
+		options.blockCache = cache;
+
+		BigBedFile bb = BigBedFile.read("test-data/test.bb", options);
+		BigWigFile bw = BigWigFile.read("test-data/test.bw", options);
+
+		List<BedEntry> bedExpected = bb.queryIntervals("chr1", 0, 10000, 0);
+		List<WigEntry> wigExpected = bw.queryIntervals("chr1", 0, 10000, 0);
+		assertEquals(0, cache.getHitCount());
+		long misses = cache.getMissCount();
+		assertTrue(misses > 0);
+		assertTrue(cache.getSize() > 0);
+
+		assertThat(bb.queryIntervals("chr1", 0, 10000, 0), is(bedExpected));
+		assertThat(bw.queryIntervals("chr1", 0, 10000, 0), is(wigExpected));
+		assertEquals(misses, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+
+		BigBedRandomAccess ra = new BigBedRandomAccess(bb);
+		assertThat(ra.fetch(0, bb.getSiteCount()), is(bedExpected));
+		assertEquals(0, cache.getEvictionCount());
+
+		bb.close();
+		bw.close();
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		LRUBlockCache cache = new LRUBlockCache(100, 1);
+		cache.put("a", 0, new byte[60]);
+		cache.put("a", 100, new byte[30]);
+		cache.get("a", 0);//make block at 0 recently used
+		cache.put("b", 0, new byte[30]);
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(null, cache.get("a", 100));
+		assertEquals(60, cache.get("a", 0).length);
+		assertEquals(90, cache.getSize());
+
+		cache.put("c", 0, new byte[101]);//larger than cache, not stored
+		assertEquals(null, cache.get("c", 0));
+		assertEquals(90, cache.getSize());
+	}
+	
+	@Test
+	public void testBlockLargerThanSegment() throws Exception {
+		LRUBlockCache cache = new LRUBlockCache(1000);//16 segments
+		for(int i = 0; i < 10; i++)
+			cache.put("a", i, new byte[50]);
+		assertEquals(500, cache.getSize());
+		
+		cache.put("big", 0, new byte[900]);//much larger than maxBytes/16
+		assertEquals(900, cache.get("big", 0).length);
+		assertTrue(cache.getSize() <= 1000);
+		assertEquals(8, cache.getEvictionCount());
+		
+		cache.put("big", 1, new byte[1000]);
+		assertEquals(1000, cache.get("big", 1).length);
+		assertEquals(1000, cache.getSize());
+		assertEquals(null, cache.get("big", 0));
+		
+		cache.clear();
+		assertEquals(0, cache.getSize());
+	}
+}
@@ -0,0 +1,48 @@
+package ru.biosoft.bigbed;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+public class TestBufferedFileOutput {
+	//Index like stream of small fields, writes larger than the buffer and header patched by seek
+	private static void writeTo(DataOutput out) throws IOException {
+		WriteThroughputBenchmark.writeFields(out);
+		byte[] large = new byte[3 * BufferedFileOutput.DEFAULT_BUFFER_SIZE];
+		for(int i = 0; i < large.length; i++)
+			large[i] = (byte)i;
+		out.write(large);
+		Utils.writeNBytes(out, (byte)7, BufferedFileOutput.DEFAULT_BUFFER_SIZE + 5);
+		Utils.writeNBytes(out, (byte)0, 10000);
+		out.writeUTF("end");
+	}
+	
+	@Test
+	public void testSameAsRandomAccessFile() throws Exception {
+		File rafFile = File.createTempFile("raf", ".bin");
+		File bufferedFile = File.createTempFile("buffered", ".bin");
+		try(RandomAccessFile out = new RandomAccessFile(rafFile, "rw"))
+		{
+			writeTo(out);
+			out.seek(0);
+			out.writeInt(-1);
+		}
+		//existing content is truncated
+		Files.write(bufferedFile.toPath(), new byte[(int)rafFile.length() + 100]);
+		try(BufferedFileOutput out = new BufferedFileOutput(bufferedFile))
+		{
+			writeTo(out);
+			out.seek(0);
+			out.writeInt(-1);
+		}
+		assertArrayEquals(Files.readAllBytes(rafFile.toPath()), Files.readAllBytes(bufferedFile.toPath()));
+		rafFile.delete();
+		bufferedFile.delete();
+	}
+}
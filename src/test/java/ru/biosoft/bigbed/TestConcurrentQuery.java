@@ -0,0 +1,297 @@
+package ru.biosoft.bigbed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestConcurrentQuery {
+	static final int CHR_COUNT = 3;
+	static final int CHR_LENGTH = 1000000;
+
+	static File file;
+	static List<ChromInfo> chrs = new ArrayList<>();
+	static List<BedEntry> sites = new ArrayList<>();
+
+	@BeforeClass
+	public static void writeFile() throws Exception {
+		for(int i = 0; i < CHR_COUNT; i++)
+		{
+			ChromInfo chr = new ChromInfo();
+			chr.id = i;
+			chr.name = "chr" + (i + 1);
+			chr.length = CHR_LENGTH;
+			chrs.add(chr);
+		}
+
+		Random rnd = new Random(1);
+		for(int i = 0; i < 20000; i++)
+		{
+			int start = rnd.nextInt(CHR_LENGTH - 1000);
+			BedEntry e = new BedEntry(rnd.nextInt(CHR_COUNT), start, start + 1 + rnd.nextInt(1000));
+			e.data = ("site" + i).getBytes();
+			sites.add(e);
+		}
+
+		BigBedWriterOptions options = new BigBedWriterOptions();
+		options.blockSize = 4;//deep R-tree
+		options.itemsPerSlot = 64;
+		file = File.createTempFile("concurrent", ".bb");
+		BigBedWriter.write(sites, chrs, file, options);
+	}
+
+	@AfterClass
+	public static void deleteFile() {
+		file.delete();
+	}
+
+	static List<BedEntry> expected(int chrId, int start, int end) {
+		List<BedEntry> res = new ArrayList<>();
+		for(BedEntry e : sites)//sites were sorted by writer
+			if(e.chrId == chrId && ((e.start < end && e.end > start) || (e.start == e.end && (e.start == end || e.end == start))))
+				res.add(e);
+		return res;
+	}
+
+	private void stress(BigBedFile bb) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int t = 0; t < 8; t++)
+			{
+				long seed = t;
+				futures.add(pool.submit(() -> {
+					Random rnd = new Random(seed);
+					for(int i = 0; i < 100; i++)
+					{
+						ChromInfo chr = chrs.get(rnd.nextInt(CHR_COUNT));
+						int start = rnd.nextInt(CHR_LENGTH);
+						int end = start + rnd.nextInt(20000);
+						assertEquals(expected(chr.id, start, end), bb.queryIntervals(chr.name, start, end, 0));
+						assertEquals(chr.id, bb.getChromInfo(chr.name).id);
+					}
+					return null;
+				}));
+			}
+			for(Future<?> f : futures)
+				f.get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentRAF() throws Exception {
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		stress(bb);
+		bb.close();
+	}
+
+	@Test
+	public void testPinnedRTree() throws Exception {
+		BigFileOptions options = new BigFileOptions();
+		options.pinRTree = false;
+		BigBedFile plain = BigBedFile.read(file.getPath(), options);
+		plain.initRTree();
+		assertEquals(0, plain.rTree.getPinnedLevelCount());
+
+		options.pinRTree = true;
+		options.pinRTreeLeavesMaxSize = 0;
+		BigBedFile upper = BigBedFile.read(file.getPath(), options);
+		upper.initRTree();
+		int upperLevels = upper.rTree.getPinnedLevelCount();
+		assertTrue(upperLevels > 1);
+
+		options.pinRTreeLeavesMaxSize = Long.MAX_VALUE;
+		BigBedFile whole = BigBedFile.read(file.getPath(), options);
+		whole.initRTree();
+		assertEquals(upperLevels + 1, whole.rTree.getPinnedLevelCount());
+
+		Random rnd = new Random(0);
+		for(int i = 0; i < 200; i++)
+		{
+			ChromInfo chr = chrs.get(rnd.nextInt(CHR_COUNT));
+			int start = rnd.nextInt(CHR_LENGTH);
+			int end = start + rnd.nextInt(100000);
+			List<BedEntry> expected = expected(chr.id, start, end);
+			assertEquals(expected, plain.queryIntervals(chr.name, start, end, 0));
+			assertEquals(expected, upper.queryIntervals(chr.name, start, end, 0));
+			assertEquals(expected, whole.queryIntervals(chr.name, start, end, 0));
+		}
+		assertEquals(new BigBedRandomAccess(plain).fetch(0, sites.size()), new BigBedRandomAccess(whole).fetch(0, sites.size()));
+		plain.close();
+		upper.close();
+		whole.close();
+	}
+
+	@Test
+	public void testConcurrentMapped() throws Exception {
+		BigFileOptions options = new BigFileOptions();
+		options.memoryMapped = true;
+		BigBedFile bb = BigBedFile.read(file.getPath(), options);
+		stress(bb);
+		bb.close();
+	}
+
+	@Test
+	public void testIterator() throws Exception {
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		Random rnd = new Random(2);
+		for(int i = 0; i < 100; i++)
+		{
+			ChromInfo chr = chrs.get(rnd.nextInt(CHR_COUNT));
+			int start = rnd.nextInt(CHR_LENGTH);
+			int end = start + rnd.nextInt(100000);
+			List<BedEntry> expected = expected(chr.id, start, end);
+			try(Stream<BedEntry> stream = bb.streamIntervals(chr.name, start, end, 0)) {
+				assertEquals(expected, stream.collect(Collectors.toList()));
+			}
+			try(Stream<BedEntry> stream = bb.streamIntervals(chr.name, start, end, 5)) {
+				assertEquals(expected.subList(0, Math.min(5, expected.size())), stream.collect(Collectors.toList()));
+			}
+		}
+
+		//whole chromosome, stop after the first record
+		try(IntervalIterator<BedEntry> it = bb.iterateIntervals("chr1", 0, CHR_LENGTH, 0)) {
+			assertEquals(expected(0, 0, CHR_LENGTH).get(0), it.next());
+		}
+		try(IntervalIterator<BedEntry> it = bb.iterateIntervals("chrUnknown", 0, CHR_LENGTH, 0)) {
+			assertFalse(it.hasNext());
+		}
+		bb.close();
+	}
+
+	@Test
+	public void testMultiRegion() throws Exception {
+		Random rnd = new Random(3);
+		List<Region> regions = new ArrayList<>();
+		for(int i = 0; i < 500; i++)
+		{
+			ChromInfo chr = chrs.get(rnd.nextInt(CHR_COUNT));
+			int start = rnd.nextInt(CHR_LENGTH);
+			regions.add(new Region(chr.name, start, start + rnd.nextInt(20000)));
+		}
+		regions.add(new Region("chrUnknown", 0, CHR_LENGTH));
+		regions.add(new Region("chr1", 0, CHR_LENGTH));
+
+		BigFileOptions options = new BigFileOptions();
+		for(boolean pin : new boolean[] {false, true})
+		{
+			options.pinRTree = pin;
+			BigBedFile bb = BigBedFile.read(file.getPath(), options);
+			List<List<BedEntry>> res = bb.queryIntervals(regions, 0);
+			List<List<BedEntry>> limited = bb.queryIntervals(regions, 3);
+			assertEquals(regions.size(), res.size());
+			for(int i = 0; i < regions.size(); i++)
+			{
+				Region r = regions.get(i);
+				List<BedEntry> expected = bb.queryIntervals(r.chrom, r.start, r.end, 0);
+				assertEquals(r.toString(), expected, res.get(i));
+				assertEquals(r.toString(), expected.subList(0, Math.min(3, expected.size())), limited.get(i));
+			}
+			bb.close();
+		}
+	}
+
+	@Test
+	public void testCount() throws Exception {
+		//default, tiny and disabled cache of block counts
+		BigFileOptions options = new BigFileOptions();
+		for(int cacheSize : new int[] {options.blockCountCacheSize, 2, 0})
+		{
+			options.blockCountCacheSize = cacheSize;
+			BigBedFile bb = BigBedFile.read(file.getPath(), options);
+			Random rnd = new Random(4);
+			for(int i = 0; i < 200; i++)
+			{
+				ChromInfo chr = chrs.get(rnd.nextInt(CHR_COUNT));
+				int start = rnd.nextInt(CHR_LENGTH);
+				int end = start + rnd.nextInt(200000);
+				int expected = expected(chr.id, start, end).size();
+				assertEquals(expected, bb.countIntervals(chr.name, start, end));
+				//second time counts of contained blocks may be known
+				assertEquals(expected, bb.countIntervals(chr.name, start, end));
+			}
+			for(ChromInfo chr : chrs)
+				assertEquals(expected(chr.id, 0, CHR_LENGTH).size(), bb.countIntervals(chr.name, 0, CHR_LENGTH));
+			assertEquals(0, bb.countIntervals("chrUnknown", 0, CHR_LENGTH));
+			bb.close();
+		}
+	}
+
+	@Test
+	public void testParallelScan() throws Exception {
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		List<BedEntry> ordered = new ArrayList<>();
+		bb.parallelScan(true, ordered::addAll);
+		assertEquals(sites, ordered);
+
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			List<BedEntry> unordered = new ArrayList<>();
+			bb.parallelScan(pool, 3, false, unordered::addAll);
+			unordered.sort(Comparator.comparingInt((BedEntry e) -> e.chrId).thenComparingInt(e -> e.start).thenComparingInt(e -> e.end));
+			List<BedEntry> expected = new ArrayList<>(sites);
+			expected.sort(Comparator.comparingInt((BedEntry e) -> e.chrId).thenComparingInt(e -> e.start).thenComparingInt(e -> e.end));
+			assertEquals(expected, unordered);
+
+			ordered.clear();
+			bb.parallelScan(pool, 1, true, ordered::addAll);
+			assertEquals(sites, ordered);
+		} finally {
+			pool.shutdown();
+		}
+		bb.close();
+
+		BigWigFile bw = BigWigFile.read("test-data/test.bw");
+		List<WigEntry> expectedWig = new ArrayList<>();
+		List<ChromInfo> bwChrs = new ArrayList<>();
+		bw.traverseChroms(bwChrs::add);
+		bwChrs.sort(Comparator.comparingInt(c -> c.id));
+		for(ChromInfo chr : bwChrs)
+			expectedWig.addAll(bw.queryIntervals(chr.name, 0, chr.length, 0));
+		List<WigEntry> wig = new ArrayList<>();
+		bw.parallelScan(true, wig::addAll);
+		assertEquals(expectedWig, wig);
+		bw.close();
+	}
+
+	@Test
+	public void testParallelScanConsumerFails() throws Exception {
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			for(int i = 0; i < 20; i++)
+			{
+				try {
+					bb.parallelScan(pool, 4, i % 2 == 0, list -> {
+						throw new IllegalStateException("stop");
+					});
+					fail("Consumer exception expected");
+				} catch(IllegalStateException e) {
+					assertEquals("stop", e.getMessage());
+				}
+				//cancelled workers must not close the file
+				assertEquals(expected(1, 0, CHR_LENGTH), bb.queryIntervals("chr2", 0, CHR_LENGTH, 0));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		bb.close();
+	}
+}
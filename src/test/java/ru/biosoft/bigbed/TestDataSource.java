@@ -0,0 +1,178 @@
+package ru.biosoft.bigbed;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestDataSource {
+
+	private static void assertSameContent(DataSource expected, DataSource actual, long size) throws Exception
+	{
+		for(ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN})
+		{
+			expected.setOrder(order);
+			actual.setOrder(order);
+			//read values at every offset to cross segment boundaries in all possible ways
+			for(long pos = 0; pos + 8 <= size; pos++)
+			{
+				expected.seek(pos);
+				actual.seek(pos);
+				assertEquals(expected.readLong(), actual.readLong());
+				assertEquals(expected.tell(), actual.tell());
+				expected.seek(pos);
+				actual.seek(pos);
+				assertEquals(expected.readInt(), actual.readInt());
+				assertEquals(expected.readShort(), actual.readShort());
+				assertEquals(expected.readByte(), actual.readByte());
+			}
+		}
+		byte[] e = new byte[(int)size];
+		byte[] a = new byte[(int)size];
+		expected.seek(0);
+		actual.seek(0);
+		expected.readFully(e, 0, e.length);
+		actual.readFully(a, 0, a.length);
+		assertArrayEquals(e, a);
+		assertEquals(-1, actual.read());
+	}
+
+	@Test
+	public void testMappedSegments() throws Exception {
+		String file = "test-data/test.bb";
+		long size = new File(file).length();
+		for(int segmentBits : new int[] {3, 5, 12, MappedDataSource.DEFAULT_SEGMENT_BITS})
+		{
+			try(DataSource expected = new RAFDataSource(); DataSource actual = new MappedDataSource(segmentBits))
+			{
+				expected.open(file);
+				actual.open(file);
+				assertSameContent(expected, actual, size);
+				
+				actual.seek(size - 4);
+				actual.skip(4);
+				assertEquals(size, actual.tell());
+				actual.seek(size - 4);
+				try
+				{
+					actual.skip(5);
+					fail("skip beyond the end of file");
+				}
+				catch(EOFException e)
+				{
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBufferedPages() throws Exception {
+		String file = "test-data/test.bw";
+		long size = new File(file).length();
+		for(int pageSize : new int[] {8, 13, 64, BufferedDataSource.DEFAULT_PAGE_SIZE})
+		{
+			try(DataSource expected = new RAFDataSource(); DataSource actual = new BufferedDataSource(new RAFDataSource(), pageSize))
+			{
+				expected.open(file);
+				actual.open(file);
+				assertSameContent(expected, actual, size);
+			}
+		}
+	}
+
+	//Counts all reads that go to the file
+	static class CountingDataSource extends RAFDataSource {
+		int count;
+		@Override
+		public int read() throws IOException { count++; return super.read(); }
+		@Override
+		public byte readByte() throws IOException { count++; return super.readByte(); }
+		@Override
+		public short readShort() throws IOException { count++; return super.readShort(); }
+		@Override
+		public int readInt() throws IOException { count++; return super.readInt(); }
+		@Override
+		public long readLong() throws IOException { count++; return super.readLong(); }
+		@Override
+		public void readFully(byte[] buf, int offset, int length) throws IOException { count++; super.readFully(buf, offset, length); }
+		@Override
+		public int read(long fileOffset, byte[] data, int dataOffset, int size) throws IOException { count++; return super.read(fileOffset, data, dataOffset, size); }
+	}
+
+	@Test
+	public void testBufferedReadCount() throws Exception {
+		BigFileOptions options = new BigFileOptions();
+		CountingDataSource unbuffered = new CountingDataSource();
+		options.dataSource = unbuffered;
+		BigBedFile bb = BigBedFile.read("test-data/extra-index/test.bb", options);
+		List<BedEntry> expected = bb.queryIntervals("chr1", 0, 100000, 0);
+		bb.close();
+
+		CountingDataSource counting = new CountingDataSource();
+		options.dataSource = new BufferedDataSource(counting);
+		bb = BigBedFile.read("test-data/extra-index/test.bb", options);
+		int openCount = counting.count;
+		assertTrue("Reads while opening: " + openCount, openCount <= 4);
+		assertThat(bb.queryIntervals("chr1", 0, 100000, 0), is(expected));
+		bb.close();
+		assertTrue(counting.count < unbuffered.count / 4);
+	}
+
+	@Test
+	public void testMappedQuery() throws Exception {
+		BigFileOptions options = new BigFileOptions();
+		options.memoryMapped = true;
+
+		BigBedFile bb = BigBedFile.read("test-data/test.bb");
+		BigBedFile mappedBB = BigBedFile.read("test-data/test.bb", options);
+		assertThat(mappedBB.queryIntervals("chr1", 0, 10000, 0), is(bb.queryIntervals("chr1", 0, 10000, 0)));
+		bb.close();
+		mappedBB.close();
+
+		BigWigFile bw = BigWigFile.read("test-data/test.bw");
+		BigWigFile mappedBW = BigWigFile.read("test-data/test.bw", options);
+		List<WigEntry> expected = bw.queryIntervals("chr1", 0, 10000, 0);
+		assertThat(mappedBW.queryIntervals("chr1", 0, 10000, 0), is(expected));
+		bw.close();
+		mappedBW.close();
+	}
+
+	@Test
+	public void testInterruptedQuery() throws Exception {
+		BigBedFile bb = BigBedFile.read("test-data/test.bb");
+		List<BedEntry> expected = bb.queryIntervals("chr1", 0, 10000, 0);
+		
+		//interrupted query still reads the file and keeps interrupt status
+		Thread.currentThread().interrupt();
+		try {
+			assertThat(bb.queryIntervals("chr1", 0, 10000, 0), is(expected));
+		} finally {
+			assertTrue(Thread.interrupted());
+		}
+		
+		//interrupt of another querying thread does not break the file for other threads
+		Thread t = new Thread(() -> {
+			Thread.currentThread().interrupt();
+			try {
+				bb.queryIntervals("chr1", 0, 10000, 0);
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		t.start();
+		t.join();
+		assertThat(bb.queryIntervals("chr1", 0, 10000, 0), is(expected));
+		bb.close();
+	}
+}
@@ -0,0 +1,205 @@
+package ru.biosoft.bigbed;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class TestHttpDataSource {
+	static HttpServer server;
+	static String baseUrl;
+	static final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();//one per client connection
+
+	//Serves files from test-data supporting single range "Range: bytes=a-b" requests
+	//Requests to /slow/... wait before responding, so concurrent requests overlap
+	@BeforeClass
+	public static void startServer() throws Exception {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		Pattern rangePattern = Pattern.compile("bytes=(\\d+)-(\\d+)");
+		server.createContext("/", exchange -> {
+			clientPorts.add(exchange.getRemoteAddress().getPort());
+			String path = exchange.getRequestURI().getPath();
+			if(path.startsWith("/slow/"))
+			{
+				path = path.substring("/slow".length());
+				try {
+					Thread.sleep(200);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			byte[] content = Files.readAllBytes(Paths.get("test-data", path));
+			Matcher m = rangePattern.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+			if(!m.matches())
+			{
+				exchange.sendResponseHeaders(200, content.length);
+				try(OutputStream out = exchange.getResponseBody()) {
+					out.write(content);
+				}
+				return;
+			}
+			int from = Integer.parseInt(m.group(1));
+			int to = Math.min(Integer.parseInt(m.group(2)), content.length - 1);
+			if(from >= content.length)
+			{
+				exchange.sendResponseHeaders(416, -1);
+				exchange.close();
+				return;
+			}
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+			exchange.sendResponseHeaders(206, to - from + 1);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(content, from, to - from + 1);
+			}
+		});
+		server.start();
+		baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testQuery() throws Exception {
+		BigBedFile local = BigBedFile.read("test-data/extra-index/test.bb");
+		BigBedFile remote = BigBedFile.read(baseUrl + "extra-index/test.bb");
+		assertThat(remote.queryIntervals("chr1", 0, 100000, 0), is(local.queryIntervals("chr1", 0, 100000, 0)));
+		assertThat(remote.queryExtraIndex("name", "geneXXX", 0), is(local.queryExtraIndex("name", "geneXXX", 0)));
+		//whole file fits in the first chunk
+		assertEquals(1, ((HttpDataSource)remote.dataSource).getRequestCount());
+		local.close();
+		remote.close();
+
+		BigWigFile localBW = BigWigFile.read("test-data/test.bw");
+		BigWigFile remoteBW = BigWigFile.read(baseUrl + "test.bw");
+		List<WigEntry> expected = localBW.queryIntervals("chr1", 0, 10000, 0);
+		assertThat(remoteBW.queryIntervals("chr1", 0, 10000, 0), is(expected));
+		localBW.close();
+		remoteBW.close();
+	}
+
+	@Test
+	public void testSmallChunks() throws Exception {
+		byte[] content = Files.readAllBytes(Paths.get("test-data/test.bw"));
+
+		HttpDataSource source = new HttpDataSource(16, 1000);
+		source.open(baseUrl + "test.bw");
+		assertEquals(content.length, source.size());
+		assertEquals(1, source.getRequestCount());
+
+		//chunks 1..12 are missing and fetched with single request
+		byte[] buf = new byte[200];
+		source.readFully(0, buf, 0, buf.length);
+		assertArrayEquals(Arrays.copyOf(content, 200), buf);
+		assertEquals(2, source.getRequestCount());
+
+		//cached chunks are not requested again
+		source.seek(100);
+		assertEquals(content[100], source.readByte());
+		assertEquals(2, source.getRequestCount());
+
+		//only missing chunks around cached ones are requested
+		buf = new byte[500];
+		source.readFully(100, buf, 0, buf.length);
+		assertArrayEquals(Arrays.copyOfRange(content, 100, 600), buf);
+		assertEquals(3, source.getRequestCount());
+
+		buf = new byte[100];
+		assertEquals(50, source.read(content.length - 50, buf, 0, 100));
+		assertEquals(-1, source.read(content.length, buf, 0, 100));
+		source.close();
+
+		BigFileOptions options = new BigFileOptions();
+		options.dataSource = new HttpDataSource(16, 1000);
+		BigWigFile remoteBW = BigWigFile.read(baseUrl + "test.bw", options);
+		BigWigFile localBW = BigWigFile.read("test-data/test.bw");
+		assertThat(remoteBW.queryIntervals("chr1", 0, 10000, 0), is(localBW.queryIntervals("chr1", 0, 10000, 0)));
+		remoteBW.close();
+		localBW.close();
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		HttpDataSource source = new HttpDataSource(16, 1000);
+		source.open(baseUrl + "test.bw");
+		clientPorts.clear();
+		byte[] buf = new byte[16];
+		for(int i = 1; i < 20; i++)
+			source.readFully(i * 100, buf, 0, buf.length);
+		assertEquals(20, source.getRequestCount());
+		assertEquals(1, clientPorts.size());
+		source.close();
+	}
+
+	@Test
+	public void testSharedFetch() throws Exception {
+		byte[] content = Files.readAllBytes(Paths.get("test-data/test.bw"));
+		HttpDataSource source = new HttpDataSource(1024, 1000);
+		source.open(baseUrl + "slow/test.bw");
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<byte[]>> results = new ArrayList<>();
+		for(int i = 0; i < threads; i++)
+			results.add(pool.submit(() -> {
+				start.await();
+				byte[] buf = new byte[100];
+				source.readFully(2000, buf, 0, buf.length);
+				return buf;
+			}));
+		start.countDown();
+		for(Future<byte[]> f : results)
+			assertArrayEquals(Arrays.copyOfRange(content, 2000, 2100), f.get());
+		pool.shutdown();
+		//the first chunk is fetched by open, the second once for all threads
+		assertEquals(2, source.getRequestCount());
+		source.close();
+	}
+
+	@Test
+	public void testReadTimeout() throws Exception {
+		byte[] content = Files.readAllBytes(Paths.get("test-data/test.bw"));
+		HttpDataSource source = new HttpDataSource(1024, 1000);
+		source.open(baseUrl + "slow/test.bw");
+		source.setReadTimeout(50);
+		byte[] buf = new byte[100];
+		try {
+			source.readFully(2000, buf, 0, buf.length);
+			fail("Read should time out");
+		} catch(SocketTimeoutException e) {
+			//expected
+		}
+		//failed chunk is not cached and is fetched again
+		source.setReadTimeout(0);
+		source.readFully(2000, buf, 0, buf.length);
+		assertArrayEquals(Arrays.copyOfRange(content, 2000, 2100), buf);
+		source.close();
+	}
+}
@@ -0,0 +1,84 @@
+package ru.biosoft.bigbed;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestPipelinedQuery {
+	static final int CHR_LENGTH = 100000000;
+	static final int SITE_COUNT = 300000;
+
+	static File file;
+
+	@BeforeClass
+	public static void writeFile() throws Exception {
+		ChromInfo chr = new ChromInfo();
+		chr.id = 0;
+		chr.name = "chr1";
+		chr.length = CHR_LENGTH;
+		List<ChromInfo> chrs = new ArrayList<>();
+		chrs.add(chr);
+
+		Random rnd = new Random(1);
+		List<BedEntry> sites = new ArrayList<>();
+		for(int i = 0; i < SITE_COUNT; i++)
+		{
+			int start = rnd.nextInt(CHR_LENGTH - 1000);
+			BedEntry e = new BedEntry(0, start, start + 1 + rnd.nextInt(1000));
+			e.data = ("site" + i + "\t" + rnd.nextInt(1000) + "\t+\t" + rnd.nextDouble()).getBytes();
+			sites.add(e);
+		}
+
+		file = File.createTempFile("pipelined", ".bb");
+		BigBedWriter.write(sites, chrs, file, new BigBedWriterOptions());
+	}
+
+	@AfterClass
+	public static void deleteFile() {
+		file.delete();
+	}
+
+	@Test
+	public void testPipelined() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			BigBedFile serial = BigBedFile.read(file.getPath());
+			BigFileOptions options = new BigFileOptions();
+			options.queryExecutor = pool;
+			BigBedFile pipelined = BigBedFile.read(file.getPath(), options);
+
+			List<BedEntry> expected = serial.queryIntervals("chr1", 0, CHR_LENGTH, 0);
+			assertEquals(SITE_COUNT, expected.size());
+			assertEquals(expected, pipelined.queryIntervals("chr1", 0, CHR_LENGTH, 0));
+			assertEquals(expected.subList(0, 1000), pipelined.queryIntervals("chr1", 0, CHR_LENGTH, 1000));
+			Random rnd = new Random(2);
+			for(int i = 0; i < 50; i++)
+			{
+				int start = rnd.nextInt(CHR_LENGTH);
+				int end = start + rnd.nextInt(CHR_LENGTH / 10);
+				assertEquals(serial.queryIntervals("chr1", start, end, 0), pipelined.queryIntervals("chr1", start, end, 0));
+			}
+
+			//cached blocks are copies, not the reused worker buffers
+			options.blockCache = new LRUBlockCache(1 << 30);
+			BigBedFile cached = BigBedFile.read(file.getPath(), options);
+			assertEquals(expected, cached.queryIntervals("chr1", 0, CHR_LENGTH, 0));
+			assertEquals(expected, cached.queryIntervals("chr1", 0, CHR_LENGTH, 0));
+
+			serial.close();
+			pipelined.close();
+			cached.close();
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
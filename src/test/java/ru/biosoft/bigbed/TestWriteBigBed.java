@@ -1,13 +1,27 @@
 package ru.biosoft.bigbed;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -133,4 +147,362 @@ public class TestWriteBigBed {
 		expected.add(sites.get(2));
 		assertThat(bb.queryExtraIndex(4, "X", 0),is(expected));
 	}
+	
+	private static ChromInfo sitesChrom() {
+		ChromInfo chr1 = new ChromInfo();
+		chr1.id = 0;
+		chr1.name = "chr1";
+		chr1.length = 1000000;
+		return chr1;
+	}
+	
+	//5000 sites with repeating names in file with small B+ tree, so equal keys span several nodes
+	private static File writeNamedSites(List<BedEntry> sites) throws Exception {
+		List<ChromInfo> chrs = new ArrayList<>();
+		ChromInfo chr1 = sitesChrom();
+		chrs.add(chr1);
+		
+		Random rnd = new Random(1);
+		for(int i = 0; i < 5000; i++)
+		{
+			int start = rnd.nextInt(chr1.length - 100);
+			BedEntry e = new BedEntry(0, start, start + 10);
+			e.data = ("gene" + rnd.nextInt(1500)).getBytes(StandardCharsets.UTF_8);
+			sites.add(e);
+		}
+		
+		BigBedWriterOptions options = new BigBedWriterOptions();
+		options.blockSize = 4;
+		options.itemsPerSlot = 16;
+		options.bedN = 3;
+		options.autoSql = AutoSql.defaultBed(4, 4);
+		options.extraIndexColumns = new int[] {3};
+		File file = File.createTempFile("names", ".bb");
+		BigBedWriter.write(sites, chrs, file, options);
+		return file;
+	}
+	
+	@Test
+	public void testBatchExtraIndex() throws Exception {
+		File file = writeNamedSites(new ArrayList<>());
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		Random rnd = new Random(2);
+		List<String> keys = new ArrayList<>();
+		for(int i = 0; i < 1000; i++)
+			keys.add("gene" + rnd.nextInt(1700));
+		keys.add("gene1");
+		keys.add("gene1");
+		keys.add("");
+		keys.add("very long key that does not fit the index");
+		Map<String, List<BedEntry>> res = bb.queryExtraIndex("name", keys, 0);
+		Map<String, List<BedEntry>> limited = bb.queryExtraIndex("name", keys, 1);
+		assertEquals(new LinkedHashSet<>(keys), res.keySet());
+		for(String key : keys)
+		{
+			List<BedEntry> expected = bb.queryExtraIndex("name", key, 0);
+			assertThat(key, res.get(key), is(expected));
+			assertThat(key, limited.get(key), is(expected.subList(0, Math.min(1, expected.size()))));
+		}
+		bb.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testExtraIndexNodeCache() throws Exception {
+		File file = writeNamedSites(new ArrayList<>());
+		BigFileOptions options = new BigFileOptions();
+		TestDataSource.CountingDataSource counting = new TestDataSource.CountingDataSource();
+		options.dataSource = counting;
+		BigBedFile bb = BigBedFile.read(file.getPath(), options);
+		
+		//each node is read with single read
+		BPlusTree tree = new BPlusTree(counting, bb.getExtraIndices().get(0).fileOffset);
+		int depth = 1;
+		for(long n = tree.itemCount; n > tree.blockSize; n = (n + tree.blockSize - 1) / tree.blockSize)
+			depth++;
+		byte[] val = new byte[tree.valSize];
+		counting.count = 0;
+		byte[] key = Arrays.copyOf("gene1".getBytes(), tree.keySize);
+		assertTrue(tree.find(key, val));
+		assertEquals(depth, counting.count);
+		
+		//upper levels are cached
+		counting.count = 0;
+		assertTrue(tree.find(key, val));
+		assertEquals(depth - BPlusTree.CACHED_LEVELS, counting.count);
+		
+		List<BedEntry> expected = bb.queryExtraIndex("name", "gene7", 0);
+		counting.count = 0;
+		assertThat(bb.queryExtraIndex("name", "gene7", 0), is(expected));
+		int cachedCount = counting.count;
+		BigBedFile fresh = BigBedFile.read(file.getPath());
+		assertThat(fresh.queryExtraIndex("name", "gene7", 0), is(expected));
+		fresh.close();
+		bb.close();
+		assertTrue(cachedCount <= depth - BPlusTree.CACHED_LEVELS + expected.size() * 2);
+		file.delete();
+	}
+	
+	@Test
+	public void testExtraIndexRange() throws Exception {
+		List<BedEntry> sites = new ArrayList<>();
+		File file = writeNamedSites(sites);
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		for(String prefix : new String[] {"gene14", "gene1", "gene", "gene7", "gene999", "gene9999", "x", ""})
+		{
+			List<BedEntry> expected = new ArrayList<>();
+			for(BedEntry e : sites)//sites were sorted by writer
+				if(e.getRest().startsWith(prefix))
+					expected.add(e);
+			expected.sort(Comparator.comparing(BedEntry::getRest));
+			TreeSet<String> expectedKeys = new TreeSet<>();
+			for(BedEntry e : expected)
+				expectedKeys.add(e.getRest());
+			
+			assertThat(prefix, bb.queryExtraIndexPrefix("name", prefix, 0), is(expected));
+			assertThat(prefix, bb.queryExtraIndexPrefix("name", prefix, 7), is(expected.subList(0, Math.min(7, expected.size()))));
+			assertEquals(new ArrayList<>(expectedKeys), bb.listExtraIndexKeys("name", prefix, 0));
+			assertEquals(new ArrayList<>(expectedKeys).subList(0, Math.min(5, expectedKeys.size())), bb.listExtraIndexKeys("name", prefix, 5));
+		}
+		
+		List<BedEntry> expected = new ArrayList<>();
+		for(BedEntry e : sites)
+			if(e.getRest().compareTo("gene12") >= 0 && e.getRest().compareTo("gene1234") < 0)
+				expected.add(e);
+		expected.sort(Comparator.comparing(BedEntry::getRest));
+		assertThat(bb.queryExtraIndexRange("name", "gene12", "gene1234", 0), is(expected));
+		bb.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testCompressionLevel() throws Exception {
+		List<ChromInfo> chrs = new ArrayList<>();
+		ChromInfo chr1 = new ChromInfo();
+		chr1.id = 0;
+		chr1.name = "chr1";
+		chr1.length = 100000;
+		chrs.add(chr1);
+		
+		List<BedEntry> sites = new ArrayList<>();
+		for(int i = 0; i < 5000; i++)
+		{
+			BedEntry e = new BedEntry(0, i * 10, i * 10 + 5);
+			e.data = ("name" + i).getBytes(StandardCharsets.UTF_8);
+			sites.add(e);
+		}
+		
+		long[] sizes = new long[2];
+		int[] levels = {0, 9};
+		for(int i = 0; i < levels.length; i++)
+		{
+			BigBedWriterOptions options = new BigBedWriterOptions();
+			options.compressionLevel = levels[i];
+			File file = File.createTempFile("level", ".bb");
+			BigBedWriter.write(sites, chrs, file, options);
+			sizes[i] = file.length();
+			
+			BigBedFile bb = BigBedFile.read(file.getPath());
+			assertThat(bb.queryIntervals("chr1", 0, 100000, 0), is(sites));
+			bb.close();
+			file.delete();
+		}
+		assertTrue(sizes[1] < sizes[0]);
+	}
+	
+	@Test
+	public void testZoomLevels() throws Exception {
+		List<ChromInfo> chrs = new ArrayList<>();
+		for(int i = 0; i < 2; i++)
+		{
+			ChromInfo chr = new ChromInfo();
+			chr.id = i;
+			chr.name = "chr" + (i + 1);
+			chr.length = 1000000;
+			chrs.add(chr);
+		}
+		Random rnd = new Random(3);
+		List<BedEntry> sites = new ArrayList<>();
+		for(int i = 0; i < 20000; i++)
+		{
+			int start = rnd.nextInt(990000);
+			sites.add(new BedEntry(rnd.nextInt(2), start, start + rnd.nextInt(200)));
+		}
+		
+		BigBedWriterOptions options = new BigBedWriterOptions();
+		options.itemsPerSlot = 64;
+		options.blockSize = 16;
+		File file = File.createTempFile("zoom", ".bb");
+		BigBedWriter.write(sites, chrs, file, options);
+		BigBedFile bb = BigBedFile.read(file.getPath());
+		SummaryElement total = bb.getTotalSummary();
+		List<ZoomLevel> zoomLevels = bb.getZoomLevels();
+		assertTrue(zoomLevels.size() > 2);
+		for(int i = 0; i < zoomLevels.size(); i++)
+		{
+			ZoomLevel zoom = zoomLevels.get(i);
+			if(i > 0)
+				assertEquals(zoomLevels.get(i - 1).getReductionLevel() * BigFile.ZOOM_INCREMENT, zoom.getReductionLevel());
+			double[] sum = new double[2];
+			double[] minMax = {Double.MAX_VALUE, -Double.MAX_VALUE};
+			for(ChromInfo chr : chrs)
+				bb.queryZoomRecords(zoom, chr.id, 0, chr.length, rec -> {
+					assertTrue(rec.getEnd() - rec.getStart() <= zoom.getReductionLevel());
+					sum[0] += rec.getValidCount();
+					sum[1] += rec.getSum();
+					minMax[0] = Math.min(minMax[0], rec.getMinVal());
+					minMax[1] = Math.max(minMax[1], rec.getMaxVal());
+					return true;
+				});
+			assertEquals(total.validCount, sum[0], 0);
+			assertEquals(total.sum, sum[1], total.sum * 1e-6);
+			assertEquals(total.minVal, minMax[0], 0);
+			assertEquals(total.maxVal, minMax[1], 0);
+		}
+		bb.close();
+		
+		options.zoomLevels = 0;
+		BigBedWriter.write(sites, chrs, file, options);
+		bb = BigBedFile.read(file.getPath());
+		assertEquals(0, bb.getZoomLevels().size());
+		assertEquals(sites.size(), bb.getSiteCount());
+		bb.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testStreamingWrite() throws Exception {
+		List<ChromInfo> chrs = new ArrayList<>();
+		for(int i = 0; i < 3; i++)
+		{
+			ChromInfo chr = new ChromInfo();
+			chr.id = i;
+			chr.name = "chr" + (i + 1);
+			chr.length = 1000000;
+			chrs.add(chr);
+		}
+		Random rnd = new Random(4);
+		List<BedEntry> sites = new ArrayList<>();
+		StringBuilder bed = new StringBuilder("track name=test\n");
+		for(int i = 0; i < 20000; i++)
+		{
+			int start = rnd.nextInt(990000);
+			BedEntry e = new BedEntry(rnd.nextInt(3), start, start + rnd.nextInt(500));
+			e.data = ("name" + rnd.nextInt(3000) + "\t" + rnd.nextInt(1000)).getBytes(StandardCharsets.UTF_8);
+			sites.add(e);
+			bed.append(chrs.get(e.chrId).name).append('\t').append(e.start).append('\t').append(e.end).append('\t').append(e.getRest()).append('\n');
+		}
+		File bedFile = File.createTempFile("sites", ".bed");
+		Files.write(bedFile.toPath(), bed.toString().getBytes(StandardCharsets.UTF_8));
+		File tempDir = Files.createTempDirectory("runs").toFile();
+		
+		File[] files = new File[3];
+		for(int i = 0; i < files.length; i++)
+		{
+			BigBedWriterOptions options = new BigBedWriterOptions();
+			options.autoSql = AutoSql.defaultBed(3, 5);
+			options.extraIndexColumns = new int[] {3};
+			if(i > 0)
+				options.sortMemory = 100000;//several runs of sites and of extra index entries
+			options.tempDir = tempDir;
+			files[i] = File.createTempFile("stream", ".bb");
+			if(i == 0)
+				BigBedWriter.write(new ArrayList<>(sites), chrs, files[i], options);
+			else if(i == 1)
+				BigBedWriter.write(sites.iterator(), chrs, files[i], options);
+			else
+				BigBedWriter.write(bedFile, chrs, files[i], options);
+		}
+		assertEquals(0, tempDir.list().length);
+		byte[] expected = Files.readAllBytes(files[0].toPath());
+		for(int i = 1; i < files.length; i++)
+			assertArrayEquals(expected, Files.readAllBytes(files[i].toPath()));
+		
+		BigBedFile bb = BigBedFile.read(files[2].getPath());
+		assertEquals(sites.size(), bb.getSiteCount());
+		List<BedEntry> sorted = new ArrayList<>(sites);
+		sorted.sort(Comparator.comparingInt((BedEntry e) -> e.chrId).thenComparingInt(e -> e.start));
+		List<BedEntry> res = new ArrayList<>();
+		for(ChromInfo chr : chrs)
+			res.addAll(bb.queryIntervals(chr.name, 0, chr.length, 0));
+		assertThat(res, is(sorted));
+		for(int i = 0; i < sorted.size(); i++)
+			assertArrayEquals(sorted.get(i).data, res.get(i).data);
+		for(int n = 0; n < 3000; n += 7)
+		{
+			String name = "name" + n;
+			List<BedEntry> expectedSites = new ArrayList<>();
+			for(BedEntry e : sorted)
+				if(e.getRest().startsWith(name + "\t"))
+					expectedSites.add(e);
+			assertThat(name, bb.queryExtraIndex(3, name, 0), is(expectedSites));
+		}
+		bb.close();
+		
+		for(File file : files)
+			file.delete();
+		bedFile.delete();
+		tempDir.delete();
+	}
+	
+	@Test
+	public void testParallelCompression() throws Exception {
+		List<BedEntry> sites = new ArrayList<>();
+		File sequential = writeNamedSites(sites);
+		
+		BigBedWriterOptions options = new BigBedWriterOptions();
+		options.blockSize = 4;
+		options.itemsPerSlot = 16;
+		options.bedN = 3;
+		options.autoSql = AutoSql.defaultBed(4, 4);
+		options.extraIndexColumns = new int[] {3};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		options.compressExecutor = executor;
+		File parallel = File.createTempFile("parallel", ".bb");
+		try
+		{
+			BigBedWriter.write(sites, Arrays.asList(sitesChrom()), parallel, options);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallel.toPath()));
+		sequential.delete();
+		parallel.delete();
+	}
+	
+	@Test
+	public void testParallelCompressionFailure() throws Exception {
+		List<BedEntry> sites = new ArrayList<>();
+		for(int i = 0; i < 1000; i++)
+		{
+			BedEntry e = new BedEntry(0, i * 100, i * 100 + 10);
+			e.data = ("gene" + i).getBytes(StandardCharsets.UTF_8);
+			sites.add(e);
+		}
+		sites.get(500).data = "gene500\textra".getBytes(StandardCharsets.UTF_8);//wrong number of columns
+		
+		BigBedWriterOptions options = new BigBedWriterOptions();
+		options.itemsPerSlot = 16;
+		options.autoSql = AutoSql.defaultBed(4, 4);
+		options.extraIndexColumns = new int[] {3};
+		//tasks are never run, so they stay pending until cancelled
+		List<Runnable> tasks = new ArrayList<>();
+		options.compressExecutor = tasks::add;
+		File file = File.createTempFile("failed", ".bb");
+		try
+		{
+			BigBedWriter.write(sites, Arrays.asList(sitesChrom()), file, options);
+			fail("Column count error expected");
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage().startsWith("Expecting 1 columns"));
+		}
+		assertFalse(tasks.isEmpty());
+		for(Runnable task : tasks)
+			assertTrue(((Future<?>)task).isCancelled());
+		file.delete();
+	}
 }
@@ -0,0 +1,180 @@
+package ru.biosoft.bigbed;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class TestWriteBigWig {
+	private static List<ChromInfo> makeChroms()
+	{
+		List<ChromInfo> chrs = new ArrayList<>();
+		for(int i = 0; i < 2; i++)
+		{
+			ChromInfo chr = new ChromInfo();
+			chr.id = i;
+			chr.name = "chr" + (i + 1);
+			chr.length = 1000000;
+			chrs.add(chr);
+		}
+		return chrs;
+	}
+	
+	@Test
+	public void testWrite() throws Exception {
+		List<ChromInfo> chrs = makeChroms();
+		List<WigEntry> items = new ArrayList<>();
+		//fixed step
+		for(int i = 0; i < 3000; i++)
+			items.add(new WigEntry(0, 1000 + i * 20, 1000 + i * 20 + 10, i % 17 * 0.5));
+		//variable step
+		int pos = 100000;
+		for(int i = 0; i < 3000; i++)
+		{
+			items.add(new WigEntry(0, pos, pos + 5, -i % 13));
+			pos += 5 + i % 7;
+		}
+		//bedGraph
+		pos = 0;
+		for(int i = 0; i < 3000; i++)
+		{
+			items.add(new WigEntry(1, pos, pos + 1 + i % 50, i % 11 * 0.25));
+			pos += 1 + i % 50 + i % 3;
+		}
+		
+		BigWigWriterOptions options = new BigWigWriterOptions();
+		options.itemsPerSlot = 256;
+		options.blockSize = 8;
+		File tempDir = Files.createTempDirectory("zoom").toFile();
+		options.tempDir = tempDir;
+		File file = File.createTempFile("test", ".bw");
+		BigWigWriter.write(items.iterator(), chrs, file, options);
+		//zoom levels are built in temporary files, removed after write
+		assertEquals(0, tempDir.list().length);
+		tempDir.delete();
+		options.tempDir = null;
+		
+		//compression on executor gives the same file
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		options.compressExecutor = executor;
+		File parallel = File.createTempFile("parallel", ".bw");
+		BigWigWriter.write(items.iterator(), chrs, parallel, options);
+		executor.shutdown();
+		assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(parallel.toPath()));
+		parallel.delete();
+		
+		BigWigFile bw = BigWigFile.read(file.getPath());
+		List<WigEntry> res = new ArrayList<>();
+		for(ChromInfo chr : chrs)
+			res.addAll(bw.queryIntervals(chr.name, 0, chr.length, 0));
+		assertThat(res, is(items));
+		List<WigEntry> expected = new ArrayList<>();
+		for(WigEntry e : items)
+			if(e.chrId == 0 && e.end > 50000 && e.start < 100100)
+				expected.add(e);
+		assertThat(bw.queryIntervals("chr1", 50000, 100100, 0), is(expected));
+		
+		//multi-region query parses each block once and gives the same records as separate queries
+		List<Region> regions = Arrays.asList(new Region("chr2", 500, 40000), new Region("chr1", 50000, 100100),
+				new Region("chr1", 1005, 1010), new Region("chr1", 0, 200000), new Region("chr2", 30000, 30001));
+		List<List<WigEntry>> multi = bw.queryIntervals(regions, 0);
+		List<List<WigEntry>> limited = bw.queryIntervals(regions, 2);
+		for(int i = 0; i < regions.size(); i++)
+		{
+			Region r = regions.get(i);
+			List<WigEntry> single = bw.queryIntervals(r.chrom, r.start, r.end, 0);
+			assertThat(multi.get(i), is(single));
+			assertThat(limited.get(i), is(single.subList(0, Math.min(2, single.size()))));
+		}
+		
+		SummaryElement total = bw.getTotalSummary();
+		double count = 0, sum = 0;
+		for(WigEntry e : items)
+		{
+			count += e.end - e.start;
+			sum += (e.end - e.start) * e.val;
+		}
+		assertEquals(count, total.validCount, 0);
+		assertEquals(sum, total.sum, 1e-6);
+		assertEquals(-12, total.minVal, 0);
+		assertEquals(8, total.maxVal, 0);
+		
+		//zoom levels give the same totals
+		assertTrue(bw.getZoomLevels().size() > 1);
+		SummaryElement[] zoomed = bw.summary("chr1", 0, 1000000, 1);
+		SummaryElement[] raw = bw.summary("chr1", 0, 1000000, 1000000);
+		double rawCount = 0, rawSum = 0;
+		for(SummaryElement e : raw)
+		{
+			rawCount += e.validCount;
+			rawSum += e.sum;
+		}
+		assertEquals(rawCount, zoomed[0].validCount, 0);
+		assertEquals(rawSum, zoomed[0].sum, Math.abs(rawSum) * 1e-6);
+		bw.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testFixedStepSize() throws Exception {
+		List<WigEntry> items = new ArrayList<>();
+		for(int i = 0; i < 10000; i++)
+			items.add(new WigEntry(0, i * 10, i * 10 + 10, i));
+		BigWigWriterOptions options = new BigWigWriterOptions();
+		options.compress = false;
+		options.zoomLevels = 0;
+		File file = File.createTempFile("fixed", ".bw");
+		BigWigWriter.write(items.iterator(), makeChroms(), file, options);
+		//4 bytes per item in fixedStep sections, bedGraph would take 12
+		assertTrue(file.length() < 10000 * 5);
+		BigWigFile bw = BigWigFile.read(file.getPath());
+		assertThat(bw.queryIntervals("chr1", 0, 100000, 0), is(items));
+		assertEquals(0, bw.getZoomLevels().size());
+		bw.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testWigText() throws Exception {
+		String wig = "track type=wiggle_0\n"
+				+ "chr1\t0\t10\t1.5\n"
+				+ "# comment\n"
+				+ "variableStep chrom=chr1 span=5\n"
+				+ "101 2\n"
+				+ "201\t-3.25\n"
+				+ "\n"
+				+ "fixedStep chrom=chr2 start=11 step=10 span=3\n"
+				+ "4\n"
+				+ "5\n";
+		File file = File.createTempFile("text", ".bw");
+		BigWigWriter.write(new StringReader(wig), makeChroms(), file, new BigWigWriterOptions());
+		BigWigFile bw = BigWigFile.read(file.getPath());
+		assertThat(bw.queryIntervals("chr1", 0, 1000, 0), is(Arrays.asList(
+				new WigEntry(0, 0, 10, 1.5),
+				new WigEntry(0, 100, 105, 2),
+				new WigEntry(0, 200, 205, -3.25))));
+		assertThat(bw.queryIntervals("chr2", 0, 1000, 0), is(Arrays.asList(
+				new WigEntry(1, 10, 13, 4),
+				new WigEntry(1, 20, 23, 5))));
+		bw.close();
+		file.delete();
+	}
+	
+	@Test(expected = ParseException.class)
+	public void testWigUnknownChrom() throws Exception {
+		WigReader reader = new WigReader(new StringReader("variableStep chrom=chrX\n1 1\n"), makeChroms());
+		reader.next();
+	}
+}
@@ -0,0 +1,125 @@
+package ru.biosoft.bigbed;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Write throughput of BigBedWriter and BigWigWriter, timings are printed
+//Not a unit test, run with main(); equality of BufferedFileOutput and RandomAccessFile output is checked by TestBufferedFileOutput
+public class WriteThroughputBenchmark {
+	static final int CHR_LENGTH = 100000000;
+	static final int SITE_COUNT = 300000;
+
+	public static void main(String[] args) throws Exception {
+		benchmarkBigBed();
+		benchmarkBigWig();
+		benchmarkOutput();
+	}
+	
+	private static void benchmarkBigBed() throws Exception {
+		List<ChromInfo> chrs = makeChroms();
+		Random rnd = new Random(1);
+		List<BedEntry> sites = new ArrayList<>();
+		for(int i = 0; i < SITE_COUNT; i++)
+		{
+			int start = rnd.nextInt(CHR_LENGTH - 1000);
+			BedEntry e = new BedEntry(0, start, start + 1 + rnd.nextInt(1000));
+			e.data = ("site" + i + "\t" + rnd.nextInt(1000)).getBytes();
+			sites.add(e);
+		}
+		
+		for(boolean compress : new boolean[] {false, true})
+		{
+			BigBedWriterOptions options = new BigBedWriterOptions();
+			options.compress = compress;
+			options.autoSql = AutoSql.defaultBed(3, 5);
+			options.extraIndexColumns = new int[] {3};
+			options.itemsPerSlot = 64;
+			options.blockSize = 64;
+			File file = File.createTempFile("throughput", ".bb");
+			long time = System.nanoTime();
+			BigBedWriter.write(sites, chrs, file, options);
+			time = System.nanoTime() - time;
+			report("BigBed" + (compress ? " compressed" : ""), file.length(), time);
+			
+			file.delete();
+		}
+	}
+	
+	private static void benchmarkBigWig() throws Exception {
+		List<WigEntry> items = new ArrayList<>();
+		Random rnd = new Random(2);
+		int pos = 0;
+		for(int i = 0; i < SITE_COUNT * 3; i++)
+		{
+			int span = 1 + rnd.nextInt(50);
+			items.add(new WigEntry(0, pos, pos + span, rnd.nextInt(100)));
+			pos += span + rnd.nextInt(10);
+		}
+		BigWigWriterOptions options = new BigWigWriterOptions();
+		options.compress = false;
+		File file = File.createTempFile("throughput", ".bw");
+		long time = System.nanoTime();
+		BigWigWriter.write(items.iterator(), makeChroms(), file, options);
+		time = System.nanoTime() - time;
+		report("BigWig", file.length(), time);
+		file.delete();
+	}
+	
+	//Index like stream of small fields through RandomAccessFile, as writers did before, and through BufferedFileOutput
+	private static void benchmarkOutput() throws Exception {
+		File rafFile = File.createTempFile("raf", ".bin");
+		File bufferedFile = File.createTempFile("buffered", ".bin");
+		long rafTime = System.nanoTime();
+		try(RandomAccessFile out = new RandomAccessFile(rafFile, "rw"))
+		{
+			writeFields(out);
+			out.seek(0);
+			out.writeInt(-1);
+		}
+		rafTime = System.nanoTime() - rafTime;
+		long bufferedTime = System.nanoTime();
+		try(BufferedFileOutput out = new BufferedFileOutput(bufferedFile))
+		{
+			writeFields(out);
+			out.seek(0);
+			out.writeInt(-1);
+		}
+		bufferedTime = System.nanoTime() - bufferedTime;
+		report("RandomAccessFile", rafFile.length(), rafTime);
+		report("BufferedFileOutput", bufferedFile.length(), bufferedTime);
+		rafFile.delete();
+		bufferedFile.delete();
+	}
+	
+	static void writeFields(DataOutput out) throws IOException {
+		for(int i = 0; i < SITE_COUNT; i++)
+		{
+			out.writeByte(1);
+			out.writeByte(0);
+			out.writeShort(i);
+			out.writeInt(0);
+			out.writeInt(i);
+			out.writeLong(i * 100L);
+			Utils.writeNBytes(out, (byte)0, i % 16);
+		}
+	}
+	
+	private static List<ChromInfo> makeChroms() {
+		ChromInfo chr = new ChromInfo();
+		chr.id = 0;
+		chr.name = "chr1";
+		chr.length = CHR_LENGTH;
+		List<ChromInfo> chrs = new ArrayList<>();
+		chrs.add(chr);
+		return chrs;
+	}
+	
+	private static void report(String name, long bytes, long nanos) {
+		System.out.printf("%s write: %d bytes in %d ms, %.1f MB/s%n", name, bytes, nanos / 1000000, bytes / 1e6 / (nanos / 1e9));
+	}
+}